@@ -18,11 +18,15 @@ package com.github.drinkjava2.cglib3_2_0.core;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
 import java.security.ProtectionDomain;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import com.github.drinkjava2.asm5_0_3.ClassReader;
 
@@ -36,7 +40,6 @@ import com.github.drinkjava2.asm5_0_3.ClassReader;
 abstract public class AbstractClassGenerator
 implements ClassGenerator
 {
-    private static final Object NAME_KEY = new Object();
     private static final ThreadLocal CURRENT = new ThreadLocal();
 
     private GeneratorStrategy strategy = DefaultGeneratorStrategy.INSTANCE;
@@ -51,12 +54,28 @@ implements ClassGenerator
 
     protected static class Source {
         String name;
-        Map cache = new WeakHashMap();
+        Map cache = new WeakHashMap(); // ClassLoader -> LoaderCache, guarded by this
+        volatile LoaderCache last; // cache of last used ClassLoader, read without lock
         public Source(String name) {
             this.name = name;
         }
     }
 
+    /**
+     * Generated classes of one <code>ClassLoader</code>. A value of <code>classes</code>
+     * is a <code>FutureTask</code> while its class is being generated, then a
+     * <code>WeakReference</code> of the class, so cache hits need no lock and a miss
+     * only blocks threads asking for the same key.
+     */
+    static class LoaderCache {
+        final WeakReference loader;
+        final ConcurrentHashMap classes = new ConcurrentHashMap();
+        final Set names = Collections.synchronizedSet(new HashSet());
+        LoaderCache(ClassLoader loader) {
+            this.loader = new WeakReference(loader);
+        }
+    }
+
     protected AbstractClassGenerator(Source source) {
         this.source = source;
     }
@@ -72,16 +91,37 @@ implements ClassGenerator
     }
 
     private String getClassName(final ClassLoader loader) {
-        final Set nameCache = getClassNameCache(loader);
+        final Set nameCache = getLoaderCache(loader).names;
         return namingPolicy.getClassName(namePrefix, source.name, key, new Predicate() {
             public boolean evaluate(Object arg) {
-                return nameCache.contains(arg);
+                return !nameCache.add(arg); // reserve the name at once
             }
         });
     }
 
-    private Set getClassNameCache(ClassLoader loader) {
-        return (Set)((Map)source.cache.get(loader)).get(NAME_KEY);
+    /**
+     * Reserve a class name in the <code>ClassLoader</code> of this generator, so no other
+     * generated class use it. Used by a <code>GeneratorStrategy</code> which returns bytes
+     * of a class generated before, for example loaded from a file.
+     * @return false if the name is already reserved
+     */
+    public boolean reserveClassName(String name) {
+        return getLoaderCache(getClassLoader()).names.add(name);
+    }
+
+    private LoaderCache getLoaderCache(ClassLoader loader) {
+        LoaderCache last = source.last;
+        if (last != null && last.loader.get() == loader)
+            return last;
+        synchronized (source) {
+            LoaderCache result = (LoaderCache)source.cache.get(loader);
+            if (result == null) {
+                result = new LoaderCache(loader);
+                source.cache.put(loader, result);
+            }
+            source.last = result;
+            return result;
+        }
     }
 
     /**
@@ -202,54 +242,9 @@ implements ClassGenerator
 
     protected Object create(Object key) {
         try {
-        	Class gen = null;
-        	
-            synchronized (source) {
-                ClassLoader loader = getClassLoader();
-                ProtectionDomain protectionDomain = getProtectionDomain();
-                Map cache2 = null;
-                cache2 = (Map)source.cache.get(loader);
-                if (cache2 == null) {
-                    cache2 = new HashMap();
-                    cache2.put(NAME_KEY, new HashSet());
-                    source.cache.put(loader, cache2);
-                } else if (useCache) {
-                    Reference ref = (Reference)cache2.get(key);
-                    gen = (Class) (( ref == null ) ? null : ref.get()); 
-                }
-                if (gen == null) {
-                    Object save = CURRENT.get();
-                    CURRENT.set(this);
-                    try {
-                        this.key = key;
-                        
-                        if (attemptLoad) {
-                            try {
-                                gen = loader.loadClass(getClassName());
-                            } catch (ClassNotFoundException e) {
-                                // ignore
-                            }
-                        }
-                        if (gen == null) {
-                            byte[] b = strategy.generate(this);
-                            String className = ClassNameReader.getClassName(new ClassReader(b));
-                            getClassNameCache(loader).add(className);
-                            if(protectionDomain == null) {
-                            	gen = ReflectUtils.defineClass(className, b, loader);
-                            } else {
-                            	gen = ReflectUtils.defineClass(className, b, loader, protectionDomain);
-                            }
-                        }
-                       
-                        if (useCache) {
-                            cache2.put(key, new WeakReference(gen));
-                        }
-                        return firstInstance(gen);
-                    } finally {
-                        CURRENT.set(save);
-                    }
-                }
-            }
+            ClassLoader loader = getClassLoader();
+            LoaderCache cache = getLoaderCache(loader);
+            Class gen = useCache ? getOrGenerate(cache, loader, key) : generate(cache, loader, key);
             return firstInstance(gen);
         } catch (RuntimeException e) {
             throw e;
@@ -260,6 +255,92 @@ implements ClassGenerator
         }
     }
 
+    private Class getOrGenerate(final LoaderCache cache, final ClassLoader loader, final Object key) throws Exception {
+        while (true) {
+            Object value = cache.classes.get(key);
+            if (value instanceof Reference) {
+                Class gen = (Class)((Reference)value).get();
+                if (gen != null)
+                    return gen;
+                cache.classes.remove(key, value); // class was collected
+            } else if (value != null) {
+                if (((GenerateTask)value).owner == Thread.currentThread())
+                    return generate(cache, loader, key); // same key asked again when generating it
+                return waitFor((FutureTask)value);
+            } else {
+                GenerateTask task = new GenerateTask(new Callable() {
+                    public Object call() throws Exception {
+                        return generate(cache, loader, key);
+                    }
+                });
+                if (cache.classes.putIfAbsent(key, task) != null)
+                    continue; // other thread is generating it
+                task.run();
+                try {
+                    Class gen = waitFor(task);
+                    cache.classes.replace(key, task, new WeakReference(gen));
+                    return gen;
+                } catch (Exception e) {
+                    cache.classes.remove(key, task);
+                    throw e;
+                } catch (Error e) {
+                    cache.classes.remove(key, task);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    static class GenerateTask extends FutureTask {
+        final Thread owner = Thread.currentThread();
+        GenerateTask(Callable callable) {
+            super(callable);
+        }
+    }
+
+    private static Class waitFor(FutureTask task) throws Exception {
+        try {
+            return (Class)task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new CodeGenerationException(cause);
+        }
+    }
+
+    private Class generate(LoaderCache cache, ClassLoader loader, Object key) throws Exception {
+        Object save = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            this.key = key;
+            Class gen = null;
+            if (attemptLoad) {
+                try {
+                    gen = loader.loadClass(getClassName());
+                } catch (ClassNotFoundException e) {
+                    // ignore
+                }
+            }
+            if (gen == null) {
+                byte[] b = strategy.generate(this);
+                String className = ClassNameReader.getClassName(new ClassReader(b));
+                cache.names.add(className);
+                ProtectionDomain protectionDomain = getProtectionDomain();
+                if(protectionDomain == null) {
+                    gen = ReflectUtils.defineClass(className, b, loader);
+                } else {
+                    gen = ReflectUtils.defineClass(className, b, loader, protectionDomain);
+                }
+            }
+            return gen;
+        } finally {
+            CURRENT.set(save);
+        }
+    }
+
     abstract protected Object firstInstance(Class type) throws Exception;
     abstract protected Object nextInstance(Object instance) throws Exception;
 }
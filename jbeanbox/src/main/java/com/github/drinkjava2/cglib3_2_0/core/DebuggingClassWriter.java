@@ -51,7 +51,11 @@ public class DebuggingClassWriter extends ClassVisitor {
     }
     
     public DebuggingClassWriter(int flags) {
-	super(Opcodes.ASM5, new ClassWriter(flags));
+	super(Opcodes.ASM5, new HierarchyClassWriter(flags));
+    }
+
+    public DebuggingClassWriter(int flags, ClassLoader loader) {
+	super(Opcodes.ASM5, new HierarchyClassWriter(flags, loader));
     }
 
     public void visit(int version,
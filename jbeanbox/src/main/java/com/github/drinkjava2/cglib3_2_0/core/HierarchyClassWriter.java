@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.cglib3_2_0.core;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.drinkjava2.asm5_0_3.ClassReader;
+import com.github.drinkjava2.asm5_0_3.ClassWriter;
+import com.github.drinkjava2.asm5_0_3.Opcodes;
+
+/**
+ * A <code>ClassWriter</code> computes common super class of frames by reading
+ * super names from class file headers instead of loading classes, headers are
+ * cached per <code>ClassLoader</code> and shared by all generators. The loader
+ * is the one of generator running in current thread, if not given.
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+@SuppressWarnings({"rawtypes","unchecked"})
+public class HierarchyClassWriter extends ClassWriter {
+    private static final Map CACHE = new WeakHashMap(); // ClassLoader -> Map<String, TypeInfo>
+    private static final String OBJECT = "java/lang/Object";
+
+    private ClassLoader loader; // if null, resolved when first used
+    private Map types; // cached TypeInfo of loader
+
+    /** Super class, interfaces and access flag of a type, read from class header */
+    static class TypeInfo {
+        final String superName;
+        final String[] interfaces;
+        final boolean isInterface;
+        TypeInfo(String superName, String[] interfaces, boolean isInterface) {
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.isInterface = isInterface;
+        }
+    }
+
+    public HierarchyClassWriter(int flags) {
+        this(flags, null);
+    }
+
+    public HierarchyClassWriter(int flags, ClassLoader loader) {
+        super(flags);
+        this.loader = loader;
+    }
+
+    protected String getCommonSuperClass(String type1, String type2) {
+        if (type1.equals(type2))
+            return type1;
+        TypeInfo info1 = getTypeInfo(type1);
+        TypeInfo info2 = getTypeInfo(type2);
+        if (info1 == null || info2 == null)
+            return super.getCommonSuperClass(type1, type2); // not found, load them
+        if (isAssignableFrom(type1, type2))
+            return type1;
+        if (isAssignableFrom(type2, type1))
+            return type2;
+        if (info1.isInterface || info2.isInterface)
+            return OBJECT;
+        for (String t = info1.superName; t != null; ) {
+            if (isAssignableFrom(t, type2))
+                return t;
+            TypeInfo info = getTypeInfo(t);
+            if (info == null)
+                return super.getCommonSuperClass(type1, type2);
+            t = info.superName;
+        }
+        return OBJECT;
+    }
+
+    /** Return true if type is same as or a super type of subType */
+    private boolean isAssignableFrom(String type, String subType) {
+        if (type.equals(subType) || OBJECT.equals(type))
+            return true;
+        TypeInfo info = getTypeInfo(subType);
+        if (info == null)
+            return false;
+        if (info.superName != null && isAssignableFrom(type, info.superName))
+            return true;
+        for (int i = 0; i < info.interfaces.length; i++)
+            if (isAssignableFrom(type, info.interfaces[i]))
+                return true;
+        return false;
+    }
+
+    private TypeInfo getTypeInfo(String type) {
+        if (types == null) {
+            if (loader == null) {
+                AbstractClassGenerator current = AbstractClassGenerator.getCurrent();
+                loader = current != null ? current.getClassLoader() : getClass().getClassLoader();
+            }
+            synchronized (CACHE) {
+                types = (Map)CACHE.get(loader);
+                if (types == null) {
+                    types = new ConcurrentHashMap();
+                    CACHE.put(loader, types);
+                }
+            }
+        }
+        TypeInfo info = (TypeInfo)types.get(type);
+        if (info == null) {
+            info = readTypeInfo(type);
+            if (info != null)
+                types.put(type, info);
+        }
+        return info;
+    }
+
+    private TypeInfo readTypeInfo(String type) {
+        try {
+            InputStream in = loader.getResourceAsStream(type + ".class");
+            if (in == null)
+                return null;
+            try {
+                ClassReader r = new ClassReader(in);
+                return new TypeInfo(r.getSuperName(), r.getInterfaces(),
+                        (r.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
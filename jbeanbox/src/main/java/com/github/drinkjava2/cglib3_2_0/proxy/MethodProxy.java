@@ -83,6 +83,14 @@ public class MethodProxy {
         }
     }
 
+    /**
+     * Generate the FastClasses and find method indexes now, instead of at the
+     * first call of <code>invoke</code> or <code>invokeSuper</code>.
+     */
+    public void prepare() {
+        init();
+    }
+
     private static class FastClassInfo
     {
         FastClass f1;
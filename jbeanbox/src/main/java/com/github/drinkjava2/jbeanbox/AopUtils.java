@@ -9,7 +9,27 @@
  */
 package com.github.drinkjava2.jbeanbox;
 
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.aopalliance.intercept.MethodInvocation;
+
+import com.github.drinkjava2.cglib3_2_0.proxy.Callback;
+import com.github.drinkjava2.cglib3_2_0.proxy.CallbackFilter;
 import com.github.drinkjava2.cglib3_2_0.proxy.Enhancer;
+import com.github.drinkjava2.cglib3_2_0.proxy.Factory;
+import com.github.drinkjava2.cglib3_2_0.proxy.MethodInterceptor;
+import com.github.drinkjava2.cglib3_2_0.proxy.MethodProxy;
+import com.github.drinkjava2.cglib3_2_0.proxy.NoOp;
 
 /**
  * AopUtils create AOP proxy bean
@@ -19,9 +39,13 @@ import com.github.drinkjava2.cglib3_2_0.proxy.Enhancer;
  *
  */
 public class AopUtils {// NOSONAR
+	private static final Class<?>[] CALLBACK_TYPES = new Class<?>[] { MethodInterceptor.class, NoOp.class };
 
 	/**
-	 * Create a ProxyBean
+	 * Create a ProxyBean, only methods advised by AOP rules when it be created are
+	 * intercepted, other methods directly call super methods. The proxy class of
+	 * same class and advised methods is kept in BeanBoxContext to create others, no
+	 * need setup Enhancer again
 	 * 
 	 * @param clazz
 	 *            The target class
@@ -32,25 +56,200 @@ public class AopUtils {// NOSONAR
 	 * @return A Proxy Bean with AOP support
 	 */
 	public static Object createProxyBean(Class<?> clazz, BeanBox box, BeanBoxContext ctx) {
-		BeanBoxException.assureNotNull(clazz, "Try to create a proxy bean, but beanClass not found.");
-		Enhancer enhancer = new Enhancer();
-		enhancer.setSuperclass(clazz);
-		if (box.getConstructorParams() != null && box.getConstructorParams().length > 0) {
-			BeanBox[] boxes = box.getConstructorParams();
-			Class<?>[] argsTypes = new Class<?>[boxes.length];
-			Object[] realArgsValue = new Object[boxes.length];
-			for (int i = 0; i < boxes.length; i++) {
-				argsTypes[i] = boxes[i].getType();
-				Object realValue = ctx.getBean(boxes[i]);
-				if (realValue != null && realValue instanceof String)
-					realValue = ctx.getValueTranslator().translate((String) realValue, boxes[i].getType());
-				realArgsValue[i] = realValue;
+		return new ProxyMaker(clazz, box, ctx).create(ctx);
+	}
+
+	/** Init all MethodProxies of a proxy class, first call of methods no need generate FastClasses */
+	static void prepareMethodProxies(Class<?> proxyClass) {
+		for (Field f : proxyClass.getDeclaredFields())
+			if (Modifier.isStatic(f.getModifiers()) && MethodProxy.class == f.getType()) {
+				ReflectionUtils.makeAccessible(f);
+				try {
+					((MethodProxy) f.get(null)).prepare();
+				} catch (IllegalAccessException e) {
+					BeanBoxException.throwEX(e);
+				}
 			}
-			enhancer.setCallback(new ProxyBean(box, ctx));
-			return enhancer.create(argsTypes, realArgsValue);
-		} else {
-			enhancer.setCallback(new ProxyBean(box, ctx));
-			return enhancer.create();
+	}
+
+	/**
+	 * Create a JDK proxy of box's proxyInterfaces, it delegate to the target bean
+	 * 
+	 * @param target
+	 *            The target bean, already created
+	 * @param box
+	 *            The BeanBox of target bean
+	 * @param ctx
+	 *            The BeanBoxContext
+	 * @return A Proxy Bean with AOP support
+	 */
+	public static Object createInterfaceProxy(Object target, BeanBox box, BeanBoxContext ctx) {
+		BeanBoxException.assureNotNull(target, "Try to create a interface proxy bean, but target is null.");
+		Class<?>[] interfaces = box.getProxyInterfaces();
+		for (Class<?> itf : interfaces)
+			if (!itf.isInterface() || !itf.isInstance(target))
+				BeanBoxException.throwEX("Bean of " + target.getClass() + " is not an instance of interface " + itf);
+		ClassLoader loader = target.getClass().getClassLoader(); // sees all interfaces target implemented
+		if (loader == null)
+			loader = interfaces[0].getClassLoader();
+		return Proxy.newProxyInstance(loader, interfaces, new ProxyBean(box, ctx, target));
+	}
+
+	/**
+	 * Return a copy of invocation which can proceed after the interceptor returned
+	 * (e.g. async), it proceeds from the interceptor calling this method. The
+	 * invocation given to an interceptor is reused in the call, can not be kept
+	 */
+	public static MethodInvocation copyInvocation(MethodInvocation invocation) {
+		if (invocation instanceof ProxyBean.MethodInvoc)
+			return ((ProxyBean.MethodInvoc) invocation).copy();
+		return invocation;
+	}
+
+	/**
+	 * ProxyMaker is compiled into plan of an AOP BeanBox, it keeps AopFilter, proxy
+	 * class and a ProxyBean shared by proxy beans built in compiling context, so
+	 * interceptor chains are built once. A proxy bean created before is weakly kept
+	 * as cglib Factory to create others without reflection
+	 */
+	static final class ProxyMaker {
+		private final BeanBox box;
+		private final BeanBoxContext owner; // context compiled the plan
+		private final AopFilter filter;
+		private final Callback[] callbacks; // used in owner context
+		private final BeanBox[] params;
+		private final Class<?>[] argsTypes;
+		private volatile Class<?> proxyClass;
+		private volatile Constructor<?> constr;
+		private volatile WeakReference<Factory> template;
+
+		ProxyMaker(Class<?> clazz, BeanBox box, BeanBoxContext ctx) {
+			BeanBoxException.assureNotNull(clazz, "Try to create a proxy bean, but beanClass not found.");
+			this.box = box;
+			this.owner = ctx;
+			this.filter = new AopFilter(clazz, box, ctx);
+			this.callbacks = new Callback[] { new ProxyBean(box, ctx), NoOp.INSTANCE };
+			BeanBox[] p = box.getConstructorParams();
+			this.params = p != null && p.length > 0 ? p : null;
+			if (params != null) {
+				argsTypes = new Class<?>[params.length];
+				for (int i = 0; i < params.length; i++)
+					argsTypes[i] = params[i].getType();
+			} else
+				argsTypes = null;
+		}
+
+		Object create(BeanBoxContext ctx) {
+			Callback[] cb = ctx == owner ? callbacks : new Callback[] { new ProxyBean(box, ctx), NoOp.INSTANCE };
+			Object[] args = null;
+			if (params != null) {
+				args = new Object[params.length];
+				for (int i = 0; i < params.length; i++) {
+					Object realValue = ctx.getBean(params[i]);
+					if (realValue != null && realValue instanceof String)
+						realValue = ctx.getValueTranslator().translate((String) realValue, params[i].getType());
+					args[i] = realValue;
+				}
+			}
+			WeakReference<Factory> ref = template;
+			Factory factory = ref == null ? null : ref.get();
+			if (factory != null)
+				return args == null ? factory.newInstance(cb) : factory.newInstance(argsTypes, args, cb);
+			Object bean = newInstance(ctx, cb, args);
+			template = new WeakReference<Factory>((Factory) bean);
+			return bean;
+		}
+
+		/** Create proxy bean by constructor, only used when no template */
+		private Object newInstance(BeanBoxContext ctx, Callback[] cb, Object[] args) {
+			Class<?> c = proxyClass;
+			if (c == null) {
+				c = ctx.proxyClasses.get(filter);
+				if (c == null) {
+					Enhancer enhancer = new Enhancer();
+					enhancer.setSuperclass(filter.clazz);
+					enhancer.setCallbackFilter(filter);
+					enhancer.setCallbackTypes(CALLBACK_TYPES);
+					if (ctx.getProxyCacheDir() != null)
+						enhancer.setStrategy(new ProxyClassCache(ctx.getProxyCacheDir(), filter.clazz, filter.describe()));
+					c = enhancer.createClass();
+					if (ctx.isEagerMethodProxy())
+						prepareMethodProxies(c);
+					ctx.proxyClasses.put(filter, c);
+				}
+				try {
+					Constructor<?> ct = argsTypes == null ? c.getDeclaredConstructor() : c.getDeclaredConstructor(argsTypes);
+					ReflectionUtils.makeAccessible(ct);
+					constr = ct;
+				} catch (NoSuchMethodException e) {
+					return BeanBoxException.throwEX(e);
+				}
+				proxyClass = c;
+			}
+			Enhancer.registerCallbacks(c, cb); // constructor of proxy class takes them
+			try {
+				return args == null ? constr.newInstance() : constr.newInstance(args);
+			} catch (InvocationTargetException e) {
+				return BeanBoxException.throwEX(e.getTargetException());
+			} catch (Exception e) {
+				return BeanBoxException.throwEX(e);
+			} finally {
+				Enhancer.registerCallbacks(c, null);
+			}
+		}
+	}
+
+	/**
+	 * Route advised methods to ProxyBean (callback 0) and others to NoOp (callback
+	 * 1), it only keeps bean class, AOP method names and methods, so same rules
+	 * share same cached proxy class
+	 */
+	static class AopFilter implements CallbackFilter {
+		private final Class<?> clazz;
+		private final Set<String> nameRegexs = new TreeSet<String>();
+		private final Set<Method> methods = new HashSet<Method>();
+
+		AopFilter(Class<?> clazz, BeanBox box, BeanBoxContext ctx) {
+			this.clazz = clazz;
+			if (box.getMethodAops() != null)
+				methods.addAll(box.getMethodAops().keySet());
+			if (box.getAopRules() != null)
+				for (Object[] entry : box.getAopRules())
+					nameRegexs.add((String) entry[1]);
+			BitSet matched = ctx.matchAopRules(clazz.getName());
+			for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1))
+				nameRegexs.add((String) ctx.getAopRules().get(i)[2]);
+		}
+
+		/** Return a text stay same in different JVM starts */
+		String describe() {
+			Set<String> methodNames = new TreeSet<String>();
+			for (Method m : methods)
+				methodNames.add(m.toString());
+			return clazz.getName() + "\n" + nameRegexs + "\n" + methodNames;
+		}
+
+		@Override
+		public int accept(Method method) {
+			if (methods.contains(method))
+				return 0;
+			for (String regex : nameRegexs)
+				if (NameMatcher.of(regex).matches(method.getName()))
+					return 0;
+			return 1;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof AopFilter))
+				return false;
+			AopFilter other = (AopFilter) o;
+			return clazz == other.clazz && nameRegexs.equals(other.nameRegexs) && methods.equals(other.methods);
+		}
+
+		@Override
+		public int hashCode() {
+			return (clazz.hashCode() * 31 + nameRegexs.hashCode()) * 31 + methods.hashCode();
 		}
 	}
 
@@ -40,6 +40,8 @@ public class BeanBox {
 
 	protected Boolean singleton; // Default singleton is not set, see readme.md
 
+	protected String scope; // if not null, bean is cached in this scope, for example "request", "thread"
+
 	protected Constructor<?> constructor; // if not null, use constructor to create
 
 	protected BeanBox[] constructorParams; // store constructor parameters if have
@@ -61,6 +63,10 @@ public class BeanBox {
 	// ========== AOP About ===========
 	protected Map<Method, List<Object>> methodAops;// if not null, need create proxy bean
 	protected List<Object[]> aopRules;// if not null, need create proxy bean
+	protected Class<?>[] proxyInterfaces;// if not null, AOP by JDK proxy of these interfaces
+
+	protected BeanBoxPlan plan; // plan compiled by first context used it, set to null if this box changed
+	protected int changes; // count of changes, plans compiled before a change are stale
 
 	{// NOSONAR
 		if (!BeanBox.class.equals(this.getClass())) {
@@ -92,11 +98,21 @@ public class BeanBox {
 	}
 
 	public Object getSingletonId() {
-		if (singleton == null || !singleton || pureValue || target != null)
+		if (singleton == null || !singleton || pureValue || target != null || scope != null)
 			return null;
 		return this;
 	}
 
+	/**
+	 * Mark this box changed so plans compiled from it are renewed, setters call
+	 * it, must call it after changing collections got from getters like
+	 * getFieldInjects or getMethodAops
+	 */
+	public void changed() {
+		plan = null;
+		changes++;
+	}
+
 	/** Use default global BeanBoxContext to create bean */
 	public <T> T getBean() {
 		return BeanBoxContext.globalBeanBoxContext.getBean(this);
@@ -167,12 +183,14 @@ public class BeanBox {
 	public BeanBox setAsValue(Object value) {
 		this.pureValue = true;
 		this.target = value;
+		changed();
 		return this;
 	}
 
 	/** setPrototype(true) equal to setSintleton(false) */
 	public BeanBox setPrototype(boolean isPrototype) {
 		this.singleton = !isPrototype;
+		changed();
 		return this;
 	}
 
@@ -198,6 +216,7 @@ public class BeanBox {
 			this.constructor = BeanBoxUtils.getConstructor(clazz, paramTypes);
 			this.constructorParams = params;
 		}
+		changed();
 		return this;
 	}
 
@@ -220,6 +239,7 @@ public class BeanBox {
 		if (m != null)
 			ReflectionUtils.makeAccessible(m);
 		this.getMethodInjects().put(m, params);
+		changed();
 		return this;
 	}
 
@@ -238,6 +258,7 @@ public class BeanBox {
 			methodAops.put(method, aops);
 		}
 		aops.add(BeanBoxUtils.checkAOP(aop));
+		changed();
 		return this;
 	}
 
@@ -267,6 +288,7 @@ public class BeanBox {
 	public synchronized BeanBox addBeanAop(Object aop, String methodNameRegex) {
 		checkOrCreateMethodAopRules();
 		aopRules.add(new Object[] { BeanBoxUtils.checkAOP(aop), methodNameRegex });
+		changed();
 		return this;
 	}
 
@@ -292,6 +314,7 @@ public class BeanBox {
 		box.setType(f.getType());
 		ReflectionUtils.makeAccessible(f);
 		this.getFieldInjects().put(f, box);
+		changed();
 		return this;
 	}
 
@@ -310,6 +333,7 @@ public class BeanBox {
 		inject.setPureValue(true);
 		ReflectionUtils.makeAccessible(f);
 		this.getFieldInjects().put(f, inject);
+		changed();
 		return this;
 	}
 
@@ -326,6 +350,7 @@ public class BeanBox {
 
 	public BeanBox setTarget(Object target) {
 		this.target = target;
+		changed();
 		return this;
 	}
 
@@ -335,6 +360,7 @@ public class BeanBox {
 
 	public BeanBox setPureValue(boolean pureValue) {
 		this.pureValue = pureValue;
+		changed();
 		return this;
 	}
 
@@ -344,6 +370,7 @@ public class BeanBox {
 
 	public BeanBox setType(Class<?> type) {
 		this.type = type;
+		changed();
 		return this;
 	}
 
@@ -353,6 +380,7 @@ public class BeanBox {
 
 	public BeanBox setRequired(boolean required) {
 		this.required = required;
+		changed();
 		return this;
 	}
 
@@ -362,6 +390,7 @@ public class BeanBox {
 
 	public BeanBox setBeanClass(Class<?> beanClass) {
 		this.beanClass = beanClass;
+		changed();
 		return this;
 	}
 
@@ -371,6 +400,21 @@ public class BeanBox {
 
 	public BeanBox setSingleton(Boolean singleton) {
 		this.singleton = singleton;
+		changed();
+		return this;
+	}
+
+	public String getScope() {
+		return scope;
+	}
+
+	/**
+	 * Set the scope name of this BeanBox, a scoped bean is created once in each
+	 * scope, see BeanBoxContext's openScope and registerScope methods
+	 */
+	public BeanBox setScope(String scope) {
+		this.scope = scope;
+		changed();
 		return this;
 	}
 
@@ -380,6 +424,7 @@ public class BeanBox {
 
 	public BeanBox setConstructor(Constructor<?> constructor) {
 		this.constructor = constructor;
+		changed();
 		return this;
 	}
 
@@ -389,6 +434,7 @@ public class BeanBox {
 
 	public BeanBox setConstructorParams(BeanBox[] constructorParams) {
 		this.constructorParams = constructorParams;
+		changed();
 		return this;
 	}
 
@@ -398,6 +444,7 @@ public class BeanBox {
 
 	public BeanBox setPostConstruct(Method postConstruct) {
 		this.postConstruct = postConstruct;
+		changed();
 		return this;
 	}
 
@@ -416,6 +463,7 @@ public class BeanBox {
 
 	public BeanBox setFieldInjects(Map<Field, BeanBox> fieldInjects) {
 		this.fieldInjects = fieldInjects;
+		changed();
 		return this;
 	}
 
@@ -425,6 +473,7 @@ public class BeanBox {
 
 	public BeanBox setMethodInjects(Map<Method, BeanBox[]> methodInjects) {
 		this.methodInjects = methodInjects;
+		changed();
 		return this;
 	}
 
@@ -434,6 +483,7 @@ public class BeanBox {
 
 	public BeanBox setCreateMethod(Method createMethod) {
 		this.createMethod = createMethod;
+		changed();
 		return this;
 	}
 
@@ -443,6 +493,7 @@ public class BeanBox {
 
 	public BeanBox setConfigMethod(Method configMethod) {
 		this.configMethod = configMethod;
+		changed();
 		return this;
 	}
 
@@ -452,6 +503,7 @@ public class BeanBox {
 
 	public BeanBox setMethodAops(Map<Method, List<Object>> methodAops) {
 		this.methodAops = methodAops;
+		changed();
 		return this;
 	}
 
@@ -461,6 +513,23 @@ public class BeanBox {
 
 	public BeanBox setAopRules(List<Object[]> aopRules) {
 		this.aopRules = aopRules;
+		changed();
+		return this;
+	}
+
+	public Class<?>[] getProxyInterfaces() {
+		return proxyInterfaces;
+	}
+
+	/**
+	 * Set interfaces to do AOP by a JDK dynamic proxy which delegate to the bean,
+	 * the bean is created normally (no sub-class, no constructor call again), only
+	 * methods of these interfaces are intercepted, so bean should be injected as
+	 * one of these interfaces
+	 */
+	public BeanBox setProxyInterfaces(Class<?>... proxyInterfaces) {
+		this.proxyInterfaces = proxyInterfaces != null && proxyInterfaces.length == 0 ? null : proxyInterfaces;
+		changed();
 		return this;
 	}
 
@@ -9,15 +9,29 @@
  */
 package com.github.drinkjava2.jbeanbox;
 
-import java.lang.reflect.Field;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.github.drinkjava2.jbeanbox.ValueTranslator.DefaultValueTranslator;
 
@@ -35,43 +49,352 @@ public class BeanBoxContext {
 	protected static boolean globalNextAllowAnnotation = true; // as title
 	protected static boolean globalNextAllowSpringJsrAnnotation = true; // as title
 	protected static ValueTranslator globalNextValueTranslator = new DefaultValueTranslator(); // see user manual
+	protected static boolean globalNextAllowBytecodeFactory = false; // as title
+	protected static boolean globalNextAllowGeneratedBeanBox = false; // as title
+	protected static boolean globalNextPrototypeAopPerCall = false; // as title
+	protected static boolean globalNextEagerMethodProxy = false; // as title
 
 	protected boolean allowAnnotation = globalNextAllowAnnotation;
 	protected boolean allowSpringJsrAnnotation = globalNextAllowSpringJsrAnnotation;
 	protected ValueTranslator valueTranslator = globalNextValueTranslator;
-
-	protected Map<Object, Object> bindCache = new ConcurrentHashMap<Object, Object>();// shortcuts cache
-	protected Map<Class<?>, BeanBox> beanBoxMetaCache = new ConcurrentHashMap<Class<?>, BeanBox>(); // as title
-	protected Map<Object, Object> singletonCache = new ConcurrentHashMap<Object, Object>(); // class or BeanBox as key
+	protected boolean allowBytecodeFactory = globalNextAllowBytecodeFactory; // if true, use generated BeanFactory
+	protected boolean allowGeneratedBeanBox = globalNextAllowGeneratedBeanBox; // if true, use compile time BeanBoxes
+	protected boolean prototypeAopPerCall = globalNextPrototypeAopPerCall; // if true, prototype AOP created each call
+	protected boolean eagerMethodProxy = globalNextEagerMethodProxy; // if true, init MethodProxies when proxy created
+	protected File proxyCacheDir; // if not null, save and load proxy classes in this directory
+	protected DestroyListener destroyListener; // if not null, notified when singletons destroyed
+
+	// caches below are created in constructor, a scope context share them with its parent
+	protected Map<Object, Object> bindCache;// shortcuts cache
+	volatile Map<Object, Object> resolvedBindings; // final target of binding chains, renew when bind
+	protected Map<Class<?>, BeanBox> beanBoxMetaCache; // as title
+	protected Map<Object, Object> singletonCache; // class or BeanBox as key
+	protected ConcurrentHashMap<BeanBox, SingletonCreation> creatingSingletons; // NOSONAR
+	ConcurrentHashMap<ScopedKey, SingletonCreation> creatingScopedBeans; // NOSONAR
+	protected ConcurrentHashMap<Class<?>, FutureTask<BeanBox>> creatingBeanBoxes; // NOSONAR
+	protected Map<Thread, SingletonCreation> waitingThreads; // NOSONAR
+	protected Map<String, Scope> scopes; // registered custom scopes
+
+	// ==========Scope context about=========
+	public static final String REQUEST = "request"; // default scope name of openScope method
+	public static final String THREAD = "thread"; // scope name of ThreadScope
+
+	protected BeanBoxContext parent; // if not null, this is a scope context opened by parent
+	protected String scopeName; // name of scope if this is a scope context
+	protected Map<BeanBox, Object> scopedBeans; // beans of this scope context
+
+	// ==========Fork about=========
+	protected BeanBoxContext base; // if not null, this is a fork share metadata and plans of base
+	protected volatile boolean frozen; // if true, bindings and settings can not be changed
+
+	private static final BitSet NO_MATCHES = new BitSet(0);
+
+	private static final AtomicInteger planStampSeed = new AtomicInteger(); // as title
 
 	protected static BeanBoxContext globalBeanBoxContext = new BeanBoxContext();// Global BeanBox context
 
 	// ==========AOP about=========
 	protected List<Object[]> aopRules;
 
+	Map<Object, Class<?>> proxyClasses; // proxy class of an AopFilter
+
+	private volatile AopMatches aopMatches; // matched context AOP rules of each class name
+
+	/** A BeanBox in a scoped beans map, both compared by identity */
+	static final class ScopedKey {
+		final Map<BeanBox, Object> beans;
+		final BeanBox box;
+
+		ScopedKey(Map<BeanBox, Object> beans, BeanBox box) {
+			this.beans = beans;
+			this.box = box;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof ScopedKey && ((ScopedKey) o).beans == beans && ((ScopedKey) o).box == box;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(beans) * 31 + System.identityHashCode(box);
+		}
+	}
+
+	/** Matched context AOP rules of class names, only valid for given plan stamp */
+	static final class AopMatches {
+		final int stamp;
+		final Map<String, BitSet> map = new ConcurrentHashMap<String, BitSet>();
+
+		AopMatches(int stamp) {
+			this.stamp = stamp;
+		}
+	}
+
+	protected volatile int planStamp = planStampSeed.incrementAndGet(); // renew it will re-compile all plans
+
+	final int contextId = planStampSeed.incrementAndGet(); // owner of plans compiled by this context
+
+	Map<BeanBox, BeanBoxPlan> plans; // plans of BeanBoxes whose plan field owned by other context
+
 	public BeanBoxContext() {
-		bind(Object.class, EMPTY.class);
-		bind(String.class, EMPTY.class);
-		bind(Integer.class, EMPTY.class);
-		bind(Boolean.class, EMPTY.class);
-		bind(Byte.class, EMPTY.class);
-		bind(Long.class, EMPTY.class);
-		bind(Short.class, EMPTY.class);
-		bind(Float.class, EMPTY.class);
-		bind(Double.class, EMPTY.class);
-		bind(Character.class, EMPTY.class);
-		bind(List.class, EMPTY.class);
-		bind(Map.class, EMPTY.class);
-		bind(Set.class, EMPTY.class);
-
-		bind(int.class, EMPTY.class);
-		bind(boolean.class, EMPTY.class);
-		bind(byte.class, EMPTY.class);
-		bind(long.class, EMPTY.class);
-		bind(short.class, EMPTY.class);
-		bind(float.class, EMPTY.class);
-		bind(double.class, EMPTY.class);
-		bind(char.class, EMPTY.class);
+		bindCache = new ConcurrentHashMap<Object, Object>();
+		beanBoxMetaCache = new ConcurrentHashMap<Class<?>, BeanBox>();
+		singletonCache = new ConcurrentHashMap<Object, Object>();
+		creatingSingletons = new ConcurrentHashMap<BeanBox, SingletonCreation>();
+		creatingScopedBeans = new ConcurrentHashMap<ScopedKey, SingletonCreation>();
+		creatingBeanBoxes = new ConcurrentHashMap<Class<?>, FutureTask<BeanBox>>();
+		waitingThreads = new ConcurrentHashMap<Thread, SingletonCreation>();
+		scopes = new ConcurrentHashMap<String, Scope>();
+		proxyClasses = new ConcurrentHashMap<Object, Class<?>>();
+		plans = new ConcurrentHashMap<BeanBox, BeanBoxPlan>();
+		aopMatches = new AopMatches(-1);
+
+		bindCache.put(Object.class, EMPTY.class);
+		bindCache.put(String.class, EMPTY.class);
+		bindCache.put(Integer.class, EMPTY.class);
+		bindCache.put(Boolean.class, EMPTY.class);
+		bindCache.put(Byte.class, EMPTY.class);
+		bindCache.put(Long.class, EMPTY.class);
+		bindCache.put(Short.class, EMPTY.class);
+		bindCache.put(Float.class, EMPTY.class);
+		bindCache.put(Double.class, EMPTY.class);
+		bindCache.put(Character.class, EMPTY.class);
+		bindCache.put(List.class, EMPTY.class);
+		bindCache.put(Map.class, EMPTY.class);
+		bindCache.put(Set.class, EMPTY.class);
+
+		bindCache.put(int.class, EMPTY.class);
+		bindCache.put(boolean.class, EMPTY.class);
+		bindCache.put(byte.class, EMPTY.class);
+		bindCache.put(long.class, EMPTY.class);
+		bindCache.put(short.class, EMPTY.class);
+		bindCache.put(float.class, EMPTY.class);
+		bindCache.put(double.class, EMPTY.class);
+		bindCache.put(char.class, EMPTY.class);
+		bindingsChanged(); // once for all default bindings
+	}
+
+	/** Create a scope context share caches, plans and settings of parent */
+	protected BeanBoxContext(BeanBoxContext parent, String scopeName) {
+		this.parent = parent;
+		this.scopeName = scopeName;
+		this.scopedBeans = new ConcurrentHashMap<BeanBox, Object>();
+		copySettings(parent);
+		this.bindCache = parent.bindCache;
+		this.beanBoxMetaCache = parent.beanBoxMetaCache;
+		this.singletonCache = parent.singletonCache;
+		this.creatingSingletons = parent.creatingSingletons;
+		this.creatingScopedBeans = parent.creatingScopedBeans;
+		this.creatingBeanBoxes = parent.creatingBeanBoxes;
+		this.waitingThreads = parent.waitingThreads;
+		this.scopes = parent.scopes;
+		this.proxyClasses = parent.proxyClasses;
+	}
+
+	/** Create a fork share metadata, bindings and plans of a frozen base context */
+	protected BeanBoxContext(BeanBoxContext base) {
+		this.base = base;
+		copySettings(base);
+		this.bindCache = new OverlayMap<Object, Object>(base.bindCache); // only overrides stored in fork
+		this.resolvedBindings = new ConcurrentHashMap<Object, Object>();
+		this.beanBoxMetaCache = base.beanBoxMetaCache;
+		this.creatingBeanBoxes = base.creatingBeanBoxes;
+		this.singletonCache = new ConcurrentHashMap<Object, Object>();
+		this.creatingSingletons = new ConcurrentHashMap<BeanBox, SingletonCreation>();
+		this.creatingScopedBeans = new ConcurrentHashMap<ScopedKey, SingletonCreation>();
+		this.waitingThreads = new ConcurrentHashMap<Thread, SingletonCreation>();
+		this.scopes = new ConcurrentHashMap<String, Scope>(base.scopes);
+		this.scopes.remove(THREAD); // each fork has its own thread scope beans
+		this.proxyClasses = new ConcurrentHashMap<Object, Class<?>>();
+	}
+
+	private void copySettings(BeanBoxContext from) {
+		this.allowAnnotation = from.allowAnnotation;
+		this.allowSpringJsrAnnotation = from.allowSpringJsrAnnotation;
+		this.valueTranslator = from.valueTranslator;
+		this.allowBytecodeFactory = from.allowBytecodeFactory;
+		this.allowGeneratedBeanBox = from.allowGeneratedBeanBox;
+		this.prototypeAopPerCall = from.prototypeAopPerCall;
+		this.eagerMethodProxy = from.eagerMethodProxy;
+		this.proxyCacheDir = from.proxyCacheDir;
+		this.destroyListener = from.destroyListener;
+		this.aopRules = from.aopRules;
+		this.planStamp = from.planStamp;
+	}
+
+	/**
+	 * Freeze this context, after that bindings, AOP rules and settings used to
+	 * read annotations and compile plans can not be changed, so it can be safely
+	 * shared by forks. Before frozen, all BeanBoxes can be found from bindings and
+	 * BeanBoxes already in this context are created and compiled, an exception
+	 * is thrown if a compile error, circular binding, required inject target not
+	 * found or singletons depend on each other only by constructors. Then
+	 * bindings, final targets of binding chains, BeanBoxes and singletons are
+	 * copied into immutable lookup tables. BeanBoxes of classes first time used
+	 * and singletons created after frozen are still cached, and shared by all
+	 * forks, call preInstantiateSingletons before freeze to put all singletons
+	 * into the table.
+	 */
+	public synchronized BeanBoxContext freeze() {
+		if (frozen)
+			return this;
+		validate();
+		if (!(bindCache instanceof FrozenMap))
+			bindCache = new FrozenMap<Object, Object>(bindCache, true);
+		Map<Object, Object> resolved = new HashMap<Object, Object>();
+		for (Object target : bindCache.keySet())
+			resolved.put(target, resolveBinding(target));
+		resolvedBindings = new FrozenMap<Object, Object>(resolved, true); // all chains, a miss means not bound
+		if (!(beanBoxMetaCache instanceof FrozenMap))
+			beanBoxMetaCache = new FrozenMap<Class<?>, BeanBox>(beanBoxMetaCache, false);
+		if (!(singletonCache instanceof FrozenMap))
+			singletonCache = new FrozenMap<Object, Object>(singletonCache, false);
+		frozen = true;
+		return this;
+	}
+
+	/**
+	 * Create and compile all BeanBoxes can be found, check circular bindings,
+	 * required inject targets and constructor cycles of singletons
+	 */
+	private void validate() {
+		Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		List<Object> targets = new ArrayList<Object>(beanBoxMetaCache.values());
+		targets.addAll(bindCache.keySet());
+		for (int i = 0; i < targets.size(); i++) { // targets grows when new BeanBox found
+			if (targets.get(i) == null)
+				continue;
+			Object target = resolveBinding(targets.get(i));
+			if (target instanceof Class && EMPTY.class != target)
+				target = getBeanBox((Class<?>) target);
+			if (!(target instanceof BeanBox) || !visited.add(target))
+				continue;
+			BeanBox box = (BeanBox) target;
+			getPlan(box);
+			if (box.isPureValue() || box.getTarget() != null) {
+				if (!box.isPureValue())
+					targets.add(EMPTY.class != box.getTarget() ? box.getTarget() : box.getType());
+				continue;
+			}
+			if (box.getConstructorParams() != null)
+				Collections.addAll(targets, (Object[]) box.getConstructorParams());
+			if (box.getFieldInjects() != null)
+				targets.addAll(box.getFieldInjects().values());
+			if (box.getMethodInjects() != null)
+				for (BeanBox[] params : box.getMethodInjects().values())
+					if (params != null)
+						Collections.addAll(targets, (Object[]) params);
+		}
+		new SingletonScheduler(this).validate();
+	}
+
+	/**
+	 * Return final target of binding chain of given target, or target itself if
+	 * not bound, result of a bound target is cached until bindings changed
+	 */
+	Object resolveTarget(Object target) {
+		if (parent != null)
+			return parent.resolveTarget(target); // scope context share bindings of parent
+		Map<Object, Object> resolved = resolvedBindings;
+		Object result = resolved.get(target);
+		if (result != null)
+			return result;
+		if (frozen)
+			return target; // all binding chains resolved when frozen
+		if (bindCache.get(target) == null)
+			return target; // not bound, not cached so cache size not exceed bindings
+		result = resolveBinding(target);
+		resolved.put(target, result);
+		return result;
+	}
+
+	/** Must be called after bindCache changed, clear resolved binding chains */
+	void bindingsChanged() {
+		root().resolvedBindings = new ConcurrentHashMap<Object, Object>();
+	}
+
+	/** Return the context opened this scope context, or this if not a scope context */
+	BeanBoxContext root() {
+		BeanBoxContext ctx = this;
+		while (ctx.parent != null)
+			ctx = ctx.parent;
+		return ctx;
+	}
+
+	/** Follow bindings of a target, throw exception if circular binding found */
+	private Object resolveBinding(Object target) {
+		Object result = target;
+		Set<Object> chain = null;
+		for (Object next = bindCache.get(result); next != null; next = bindCache.get(result)) {
+			if (chain == null)
+				chain = new HashSet<Object>();
+			if (!chain.add(result))
+				BeanBoxException.throwEX("Circular binding found on: " + target);
+			result = next;
+		}
+		return result;
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	/**
+	 * Freeze this context and create a fork of it. A fork share BeanBoxes,
+	 * bindings and compiled plans of this context and only store its own
+	 * bindings, singletons are not shared, so it is cheap to create hundreds of
+	 * forks for tenants. Change bindings of a fork by bind method, do not change
+	 * BeanBoxes got from it because they are shared.
+	 */
+	public BeanBoxContext fork() {
+		freeze();
+		return new BeanBoxContext(this);
+	}
+
+	/** Settings used by shared BeanBoxes and plans can not be changed after frozen or forked */
+	private void assureSettingsChangeable() {
+		if (parent != null)
+			BeanBoxException.throwEX("Settings of a scope context come from its parent, change them on parent");
+		if (frozen || base != null)
+			BeanBoxException.throwEX("Settings of a frozen or forked BeanBoxContext can not be changed");
+	}
+
+	/**
+	 * Open a scope context, beans of given scope name are created once and cached
+	 * in it, other beans are shared with this context. It is cheap to open, for
+	 * example open a "request" scope for each web request and close it after
+	 * request finished, close it only destroy its scoped beans. Settings should
+	 * be changed on this context but not on scope context.
+	 */
+	public BeanBoxContext openScope(String scopeName) {
+		BeanBoxException.assureNotNull(scopeName, "Scope name can not be null");
+		return new BeanBoxContext(this, scopeName);
+	}
+
+	/** Open a "request" scope context */
+	public BeanBoxContext openScope() {
+		return openScope(REQUEST);
+	}
+
+	/** Register a custom scope, "thread" scope is registered by default */
+	public BeanBoxContext registerScope(String scopeName, Scope scope) {
+		if (frozen)
+			BeanBoxException.throwEX("Can not register scope on a frozen BeanBoxContext");
+		scopes.put(scopeName, scope);
+		return this;
+	}
+
+	/** Return registered scope of given name, null if not found */
+	public Scope getScope(String scopeName) {
+		Scope scope = scopes.get(scopeName);
+		if (scope == null && THREAD.equals(scopeName)) {
+			scope = new ThreadScope();
+			Scope existed = ((ConcurrentHashMap<String, Scope>) scopes).putIfAbsent(THREAD, scope);
+			if (existed != null)
+				scope = existed;
+		}
+		return scope;
 	}
 
 	/**
@@ -84,6 +407,10 @@ public class BeanBoxContext {
 		globalNextAllowAnnotation = true;
 		globalNextAllowSpringJsrAnnotation = true;
 		globalNextValueTranslator = new DefaultValueTranslator();
+		globalNextAllowBytecodeFactory = false;
+		globalNextAllowGeneratedBeanBox = false;
+		globalNextPrototypeAopPerCall = false;
+		globalNextEagerMethodProxy = false;
 		CREATE_METHOD = "create";
 		CONFIG_METHOD = "config";
 		globalBeanBoxContext = new BeanBoxContext();
@@ -91,236 +418,478 @@ public class BeanBoxContext {
 	}
 
 	/**
-	 * Close current BeanBoxContext, clear singlton cache, call predestory methods
-	 * for each singleton if they have
+	 * Call preDestroy methods of singletons one by one in current thread and
+	 * clear caches, a singleton is destroyed after all singletons depend on it
 	 */
 	public void close() {
-		for (Entry<Object, Object> singletons : singletonCache.entrySet()) {
-			Object key = singletons.getKey();
-			Object obj = singletons.getValue();
-			if (key instanceof BeanBox) {
-				BeanBox box = (BeanBox) key;
-				if (box.getPreDestroy() != null)
-					try {
-						box.getPreDestroy().invoke(obj);
-					} catch (Exception e) {
-						// Eat it here, but usually need log it
-					}
+		close(null, 0, 0);
+	}
+
+	/**
+	 * Call preDestroy methods of singletons and clear caches. A singleton is
+	 * destroyed after all singletons depend on it are destroyed, independent
+	 * singletons are destroyed in parallel by given executor, if executor is null
+	 * destroy them one by one in current thread. If a preDestroy method not
+	 * finished in beanTimeout milliseconds, stop waiting it; if all not finished
+	 * in timeout milliseconds, others are not destroyed, 0 means no limit.
+	 * Results are reported to destroyListener. Bindings and BeanBoxes of a frozen
+	 * context are kept because forks share them, only its singletons released.
+	 */
+	public void close(Executor executor, long beanTimeout, long timeout) {
+		if (parent != null) { // scope context only destroy its scoped beans
+			destroyScopedBeans(scopedBeans);
+			return;
+		}
+		new SingletonScheduler(this).discoverBuilt().destroy(executor, beanTimeout, timeout, destroyListener);
+		if (!frozen) { // frozen bindings and BeanBoxes may be shared by forks, keep them
+			bindCache.clear(); // only clear own bindings if is a fork
+			bindingsChanged();
+			if (base == null) {
+				beanBoxMetaCache.clear();
+				creatingBeanBoxes.clear();
+				plans.clear();
 			}
 		}
-		bindCache.clear();
-		beanBoxMetaCache.clear();
-		singletonCache.clear();
+		if (singletonCache instanceof FrozenMap) // still frozen, release own singletons only
+			singletonCache = new FrozenMap<Object, Object>(new ConcurrentHashMap<Object, Object>(), false);
+		else
+			singletonCache.clear();
+		creatingSingletons.clear();
+		creatingScopedBeans.clear();
+		proxyClasses.clear();
 	}
 
 	public <T> T getBean(Object obj) {
-		return getBean(obj, true, null); // first step of changzheng
+		return getBean(obj, true); // first step of changzheng
 	}
 
 	public <T> T getInstance(Class<T> target) {
-		return getBean(target, true, null);
-	}
-
-	public <T> T getBean(Object obj, boolean required) {
-		return getBean(obj, required, null);
+		return getBean(target, true);
 	}
 
 	public <T> T getInstance(Class<T> target, boolean required) {
-		return getBean(target, required, null);
+		return getBean(target, required);
 	}
 
 	@SuppressWarnings("unchecked")
-	protected <T> T getBean(Object target, boolean required, Set<Object> history) {// NOSONAR
-		// NOSONAR System.out.println(" target=" + target + " history=" + history);
-		if (target != null && singletonCache.containsKey(target))
-			return (T) singletonCache.get(target);
-
+	public <T> T getBean(Object target, boolean required) {// NOSONAR
 		if (target == null || EMPTY.class == target)
 			return (T) notfoundOrException(target, required);
 
-		if (target instanceof BeanBox) {
-			BeanBox bx = (BeanBox) target;
-			if (bx.isSingleton()) { // BeanBox already in singleton cache?
-				Object id = bx.getSingletonId();
-				if (id != null) {
-					Object existed = singletonCache.get(id);
-					if (existed != null && EMPTY.class != existed)
-						return (T) existed;
-				}
-			}
-			if (history != null && history.contains(target)) {
-				if (bx.getTarget() != null)
-					BeanBoxException
-							.throwEX("Fail to build bean, circular dependency found on target: " + bx.getTarget());
-				if (bx.getBeanClass() != null)
-					BeanBoxException.throwEX(
-							"Fail to build bean, circular dependency found on beanClass: " + bx.getBeanClass());
-				if (bx.getType() != null)
-					BeanBoxException.throwEX("Fail to build bean, circular dependency found on type: " + bx.getType());
-				if (bx.getCreateMethod() != null)
-					BeanBoxException.throwEX(
-							"Fail to build bean, circular dependency found on method: " + bx.getCreateMethod());
-				BeanBoxException.throwEX("Fail to build bean, circular dependency found on: " + bx);
-			}
+		Object existed = singletonCache.get(target); // fast path, only fully built singletons in it
+		if (existed != null)
+			return (T) existed;
+
+		if (!(target instanceof BeanBox))
+			return (T) doGetBean(target, required);
+
+		BeanBox bx = (BeanBox) target;
+		existed = earlySingleton(bx); // circular dependency reference a singleton being built
+		if (existed != null)
+			return (T) existed;
+		ResolveStack stack = ResolveStack.get();
+		if (stack.contains(bx))
+			throwCircularDependency(bx);
+		stack.push(bx);
+		try {
+			return (T) doGetBean(bx, required);
+		} finally {
+			stack.pop();
 		}
+	}
 
-		Object result = null;
-		if (history == null)
-			history = new HashSet<Object>();
-		history.add(target);
-		if (bindCache.containsKey(target)) {
-			result = getBean(bindCache.get(target), required, history);
-		} else if (target instanceof BeanBox) { // is a BeanBox instance?
-			result = getBeanFromBox((BeanBox) target, required, history);
-		} else if (target instanceof Class) { // is a class?
+	/** @deprecated history is ignored, circular dependency is checked by ResolveStack */
+	@Deprecated
+	protected <T> T getBean(Object target, boolean required, Set<Object> history) {// NOSONAR
+		return getBean(target, required);
+	}
+
+	private Object doGetBean(Object target, boolean required) {
+		Object bindTo = resolveTarget(target);
+		if (bindTo != target)
+			return getBean(bindTo, required);
+		if (target instanceof BeanBox) // is a BeanBox instance?
+			return getBeanFromBox((BeanBox) target, required);
+		if (target instanceof Class) { // is a class?
 			BeanBox box = BeanBoxUtils.getUniqueBeanBox(this, (Class<?>) target);
-			result = getBean(box, required, history);
-			if (EMPTY.class != result && box.isSingleton()) {
+			Object result = getBean(box, required);
+			if (EMPTY.class != result && box.isSingleton() && singletonCache.containsKey(box)) // fully built?
 				singletonCache.put(target, result);
-			}
-		} else
-			result = notfoundOrException(target, required);
-		history.remove(target);
-		return (T) result;
+			return result;
+		}
+		return notfoundOrException(target, required);
+	}
+
+	static void throwCircularDependency(BeanBox bx) {
+		if (bx.getTarget() != null)
+			BeanBoxException.throwEX("Fail to build bean, circular dependency found on target: " + bx.getTarget());
+		if (bx.getBeanClass() != null)
+			BeanBoxException
+					.throwEX("Fail to build bean, circular dependency found on beanClass: " + bx.getBeanClass());
+		if (bx.getType() != null)
+			BeanBoxException.throwEX("Fail to build bean, circular dependency found on type: " + bx.getType());
+		if (bx.getCreateMethod() != null)
+			BeanBoxException
+					.throwEX("Fail to build bean, circular dependency found on method: " + bx.getCreateMethod());
+		BeanBoxException.throwEX("Fail to build bean, circular dependency found on: " + bx);
 	}
 
 	/** Get Bean From BeanBox instance */
-	private Object getBeanFromBox(BeanBox box, boolean required, Set<Object> history) {// NOSONAR
-		// NOSONAR System.out.println(" Box=> box=" + box + " history=" + history);
+	Object getBeanFromBox(BeanBox box, boolean required) {
 		BeanBoxException.assureNotNull(box, "Fail to build instance for a null beanBox");
-		Object bean = null;
-		if (box.isSingleton()) { // Check if singleton in cache
+		BeanBoxPlan plan = getPlan(box);
+		if (!plan.singleton) {
+			if (box.getScope() != null)
+				return getScopedBean(box, plan, required);
+			return plan.build(this, required);
+		}
+		Object bean = singletonCache.get(box);
+		if (bean != null)
+			return bean;
+		SingletonCreation creation = new SingletonCreation();
+		while (true) {// NOSONAR
+			SingletonCreation existed = creatingSingletons.putIfAbsent(box, creation);
+			if (existed == null)
+				break; // current thread build it
+			if (existed.owner == creation.owner) { // circular dependency in same thread
+				if (existed.early == null)
+					throwCircularDependency(box);
+				return existed.early;
+			}
+			bean = existed.await(waitingThreads, box); // other thread is building it
+			if (bean != null)
+				return bean;
 			bean = singletonCache.get(box);
 			if (bean != null)
 				return bean;
+		} // other thread failed, try build it again
+		try {
+			bean = singletonCache.get(box); // other thread may just finished it
+			if (bean != null)
+				return bean;
+			bean = plan.build(this, required);
+			if (bean != null)
+				singletonCache.put(box, bean); // publish only after fully built
+		} finally {
+			creatingSingletons.remove(box);
+			creation.done();
 		}
+		return bean;
+	}
 
-		if (box.isPureValue()) // if constant?
-			return box.getTarget();
-		if (box.getTarget() != null) {// if target?
-			if (EMPTY.class != box.getTarget())
-				return getBean(box.getTarget(), box.isRequired(), history);
-			if (box.getType() != null)
-				return getBean(box.getType(), box.isRequired(), history);
+	/**
+	 * Get bean from cache of its scope, create it if not found. Only one thread
+	 * builds a bean for same scope cache and BeanBox, others wait it like
+	 * singletons, so postConstruct never runs on a discarded bean
+	 */
+	private Object getScopedBean(BeanBox box, BeanBoxPlan plan, boolean required) {
+		Map<BeanBox, Object> beans = findScopedBeans(box.getScope());
+		Object bean = beans.get(box);
+		if (bean != null)
+			return bean;
+		ScopedKey key = new ScopedKey(beans, box);
+		SingletonCreation creation = new SingletonCreation();
+		while (true) {// NOSONAR
+			SingletonCreation existed = creatingScopedBeans.putIfAbsent(key, creation);
+			if (existed == null)
+				break; // current thread build it
+			if (existed.owner == creation.owner)
+				throwCircularDependency(box);
+			existed.await(waitingThreads, box); // other thread is building it
+			bean = beans.get(box);
+			if (bean != null)
+				return bean;
+		} // other thread failed, try build it again
+		try {
+			bean = beans.get(box); // other thread may just finished it
+			if (bean != null)
+				return bean;
+			bean = plan.build(this, required);
+			if (bean == null)
+				return null;
+			if (beans instanceof ConcurrentMap)
+				beans.put(box, bean);
 			else
-				return notfoundOrException(box.getTarget(), box.isRequired());
+				synchronized (beans) {
+					beans.put(box, bean);
+				}
+		} finally {
+			creatingScopedBeans.remove(key);
+			creation.done();
 		}
+		return bean;
+	}
 
-		boolean aopFound = false;// is AOP?
-		if (box.getAopRules() != null || box.getMethodAops() != null)
-			aopFound = true;
-		else if (this.getAopRules() != null && box.getBeanClass() != null)
-			for (Object[] aops : this.getAopRules()) // global AOP
-				if (BeanBoxUtils.nameMatch((String) aops[1], box.getBeanClass().getName())) {
-					aopFound = true;
-					break;
-				}
-		if (aopFound)
-			bean = AopUtils.createProxyBean(box.getBeanClass(), box, this);
-		else if (box.getCreateMethod() != null) // if have create method?
-			try {
-				Method m = box.getCreateMethod();
-				if (m.getParameterTypes().length == 1) {
-					bean = m.invoke(box, new Caller(this, required, history, null));
-				} else if (m.getParameterTypes().length == 0)
-					bean = m.invoke(box);
-				else
-					BeanBoxException.throwEX("Create method can only have 0 or 1 parameter");
-				BeanBoxException.assureNotNull(bean, "Create method created a null object.");
-			} catch (Exception e) {
-				return BeanBoxException.throwEX(e);
-			}
-		else if (box.getConstructor() != null) { // has constructor?
-			if (box.getConstructorParams() != null && box.getConstructorParams().length > 0) {
-				Object[] initargs = param2RealObjects(this, history, box.getConstructorParams());
-				try {
-					bean = box.getConstructor().newInstance(initargs);
-				} catch (Exception e) {
-					return BeanBoxException.throwEX(e);
-				}
-			} else // 0 param constructor
-				try {
-					bean = box.getConstructor().newInstance();
-				} catch (Exception e) {
-					return BeanBoxException.throwEX(e);
-				}
-		} else if (box.getBeanClass() != null) { // is normal bean
-			if (EMPTY.class == box.getBeanClass())
-				return notfoundOrException(EMPTY.class, required);
+	/** Find cache of given scope from this and parent scope contexts, then registered scopes */
+	private Map<BeanBox, Object> findScopedBeans(String name) {
+		for (BeanBoxContext ctx = this; ctx.parent != null; ctx = ctx.parent)
+			if (name.equals(ctx.scopeName))
+				return ctx.scopedBeans;
+		Scope scope = getScope(name);
+		Map<BeanBox, Object> beans = scope == null ? null : scope.getBeans(this);
+		if (beans == null)
+			BeanBoxException.throwEX("No active scope '" + name + "' found, open it by openScope(\"" + name
+					+ "\") and get bean from the scope context");
+		return beans;
+	}
+
+	/** Call preDestroy methods of given scoped beans and remove them */
+	void destroyScopedBeans(Map<BeanBox, Object> beans) {
+		for (Entry<BeanBox, Object> entry : beans.entrySet()) {
+			BeanBox box = entry.getKey();
+			if (box.getPreDestroy() == null)
+				continue;
+			long start = System.nanoTime();
+			Throwable error = null;
 			try {
-				bean = box.getBeanClass().newInstance();
-			} catch (Exception e) {
-				BeanBoxException.throwEX("Failed to call 0 parameter constructor of: " + box.getBeanClass(), e);
+				box.getPreDestroy().invoke(entry.getValue());
+			} catch (InvocationTargetException e) {
+				error = e.getTargetException();
+			} catch (Exception e) {// NOSONAR
+				error = e;
 			}
-		} else
-			return notfoundOrException(null, required); // return null or throw EX
+			if (destroyListener != null)
+				destroyListener.destroyed(box, entry.getValue(), System.nanoTime() - start, error);
+		}
+		beans.clear();
+	}
 
-		// Now Bean is ready
+	/** Return the early reference of a singleton being built by current thread */
+	Object earlySingleton(BeanBox box) {
+		SingletonCreation creation = creatingSingletons.get(box);
+		if (creation != null && creation.owner == Thread.currentThread())
+			return creation.early;
+		return null;
+	}
 
-		// Cache bean or proxy bean right now for circular dependency use
-		if (box.isSingleton()) {
-			Object id = box.getSingletonId();
-			if (id != null)
-				singletonCache.put(box, bean);
-		} // NOW BEAN IS CREATED
+	/**
+	 * Return indexes of context AOP rules whose class name pattern matches given
+	 * class name, result is cached until AOP rules changed, do not modify it
+	 */
+	BitSet matchAopRules(String className) {
+		if (parent != null)
+			return parent.matchAopRules(className);
+		if (base != null)
+			return base.matchAopRules(className);
+		List<Object[]> rules = aopRules;
+		if (rules == null || rules.isEmpty())
+			return NO_MATCHES;
+		AopMatches matches = aopMatches;
+		if (matches.stamp != planStamp) {
+			matches = new AopMatches(planStamp);
+			aopMatches = matches;
+		}
+		BitSet result = matches.map.get(className);
+		if (result == null) {
+			result = new BitSet(rules.size());
+			for (int i = 0; i < rules.size(); i++)
+				if (NameMatcher.of((String) rules.get(i)[1]).matches(className))
+					result.set(i);
+			matches.map.put(className, result);
+		}
+		return result;
+	}
 
-		if (box.getConfigMethod() != null) {// ====config method of this BeanBox
-			try {
-				Method m = box.getConfigMethod();
-				if (m.getParameterTypes().length == 2)
-					m.invoke(box, bean, new Caller(this, required, history, bean));
-				else if (m.getParameterTypes().length == 1)
-					m.invoke(box, bean);
-				else
-					BeanBoxException.throwEX("Config method can only have 1 or 2 parameters");
-			} catch (Exception e) {
-				return BeanBoxException.throwEX(e);
-			}
+	/** Follow bindings to find the BeanBox of a target, return null if not found or is pure value */
+	BeanBox findBeanBox(Object target) {
+		return findBeanBox(target, true);
+	}
+
+	/**
+	 * Same as findBeanBox(target), if create is false, BeanBox of a class is only
+	 * looked up in beanBoxMetaCache, no new metadata be created
+	 */
+	BeanBox findBeanBox(Object target, boolean create) {
+		Object t = target;
+		for (int i = 0; i < 100 && t != null; i++) {// NOSONAR 100 to stop wrong bind loop
+			Object bound = bindCache.get(t);
+			if (bound != null)
+				t = bound;
+			else if (t instanceof BeanBox) {
+				BeanBox box = (BeanBox) t;
+				if (box.isPureValue() || box.getTarget() == null)
+					return box.isPureValue() ? null : box;
+				t = box.getTarget();
+			} else if (t instanceof Class && EMPTY.class != t)
+				return create ? BeanBoxUtils.getUniqueBeanBox(this, (Class<?>) t) : beanBoxMetaCache.get(t);
+			else
+				return null;
 		}
+		return null;
+	}
 
-		if (box.getPostConstruct() != null) // PostConstructor
-			ReflectionUtils.invokeMethod(box.getPostConstruct(), bean);
-
-		if (box.getFieldInjects() != null) // Fields inject
-			for (Entry<Field, BeanBox> entry : box.getFieldInjects().entrySet()) {
-				Field f = entry.getKey();
-				BeanBox b = entry.getValue();
-				Object fieldValue = this.getBeanFromBox(b, false, history);
-				if (EMPTY.class == fieldValue) {
-					if (b.isRequired())
-						BeanBoxException.throwEX("Not found required value for field: " + f.getName() + " in "
-								+ f.getDeclaringClass().getName());
-				} else {
-					if (fieldValue != null && fieldValue instanceof String)
-						fieldValue = this.valueTranslator.translate((String) fieldValue, b.getType());
-					ReflectionUtils.setField(f, bean, fieldValue);
+	/** Get the compiled plan of a BeanBox, compile it if not compiled */
+	BeanBoxPlan getPlan(BeanBox box) {
+		if (parent != null)
+			return parent.getPlan(box); // share plans of parent
+		if (base != null)
+			return base.getPlan(box); // share plans of base
+		BeanBoxPlan plan = box.plan;
+		if (plan != null && plan.owner == contextId && plan.stamp == planStamp && plan.changes == box.changes)
+			return plan;
+		if (plan == null || plan.owner == contextId) { // own the plan field of box
+			plan = BeanBoxPlan.compile(this, box);
+			box.plan = plan;
+			plans.remove(box);
+			return plan;
+		}
+		plan = plans.get(box); // box also used by other context
+		if (plan == null || plan.stamp != planStamp || plan.changes != box.changes) {
+			plan = BeanBoxPlan.compile(this, box);
+			plans.put(box, plan);
+		}
+		return plan;
+	}
+
+	/**
+	 * Compile all BeanBoxes already known by this context and their parameter
+	 * BeanBoxes to resolution plans, usually called after configuration finished.
+	 * If not call this method, a BeanBox will be compiled when it be used first
+	 * time. If a BeanBox be changed after compiled, it will be re-compiled.
+	 */
+	public BeanBoxContext compile() {
+		Set<BeanBox> compiled = Collections.newSetFromMap(new IdentityHashMap<BeanBox, Boolean>());
+		for (BeanBox box : new ArrayList<BeanBox>(beanBoxMetaCache.values()))
+			compileBox(box, compiled);
+		for (Object target : new ArrayList<Object>(bindCache.values()))
+			if (target instanceof BeanBox)
+				compileBox((BeanBox) target, compiled);
+		return this;
+	}
+
+	private void compileBox(BeanBox box, Set<BeanBox> compiled) {
+		if (box == null || !compiled.add(box))
+			return;
+		getPlan(box);
+		if (box.getTarget() instanceof BeanBox && !box.isPureValue())
+			compileBox((BeanBox) box.getTarget(), compiled);
+		if (box.getConstructorParams() != null)
+			for (BeanBox param : box.getConstructorParams())
+				compileBox(param, compiled);
+		if (box.getFieldInjects() != null)
+			for (BeanBox param : box.getFieldInjects().values())
+				compileBox(param, compiled);
+		if (box.getMethodInjects() != null)
+			for (BeanBox[] params : box.getMethodInjects().values())
+				if (params != null)
+					for (BeanBox param : params)
+						compileBox(param, compiled);
+	}
+
+	/**
+	 * Build all singletons right now instead of build them when first time used.
+	 * Singletons are found from BeanBoxes already in this context (for example
+	 * by getBeanBox or bind methods) and the beans they depend on. A singleton
+	 * only be built after all singletons it depends on are built, independent
+	 * singletons are built in parallel by given executor, if executor is null,
+	 * build them one by one in current thread.
+	 */
+	public BeanBoxContext preInstantiateSingletons(Executor executor) {
+		new SingletonScheduler(this).discover().run(executor);
+		return this;
+	}
+
+	/**
+	 * Read annotations of given classes and build their BeanBoxes into
+	 * beanBoxMetaCache right now, so reflection cost not happen when beans first
+	 * time used. Classes are scanned in parallel by given executor, if executor is
+	 * null, scan them one by one in current thread. A class is only scanned once
+	 * even other threads ask for it at same time.
+	 */
+	public BeanBoxContext scan(Collection<Class<?>> classes, Executor executor) {
+		BeanBoxException.assureNotNull(classes, "Classes to scan can not be null");
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final CountDownLatch latch = new CountDownLatch(classes.size());
+		for (final Class<?> clazz : classes) {
+			Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						BeanBoxUtils.getUniqueBeanBox(BeanBoxContext.this, clazz);
+					} catch (Throwable e) {// NOSONAR
+						error.compareAndSet(null, e);
+					} finally {
+						latch.countDown();
+					}
 				}
-			}
+			};
+			if (executor == null)
+				task.run();
+			else
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException e) {// NOSONAR
+					task.run();
+				}
+		}
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			BeanBoxException.throwEX(e);
+		}
+		Throwable e = error.get();
+		if (e != null)
+			BeanBoxException.throwEX("Fail to scan classes: " + e.getMessage(), e);
+		return this;
+	}
 
-		if (box.getMethodInjects() != null) { // Methods inject
-			for (Entry<Method, BeanBox[]> methods : box.getMethodInjects().entrySet()) {
-				Method m = methods.getKey();
-				BeanBox[] paramBoxs = methods.getValue();
-				if (paramBoxs != null && paramBoxs.length > 0) {
-					Object[] methodParams = param2RealObjects(this, history, paramBoxs);
-					ReflectionUtils.invokeMethod(m, bean, methodParams);
-				} else // method has no parameter
-					ReflectionUtils.invokeMethod(m, bean);
-			}
+	/**
+	 * Save BeanBoxes built from annotations and bindings between classes or
+	 * Strings of this context to a binary snapshot file, next time call
+	 * loadSnapshot to use them instead of reading annotations again
+	 */
+	public BeanBoxContext saveSnapshot(File file) {
+		BeanBoxException.assureNotNull(file, "Snapshot file can not be null");
+		try {
+			BeanBoxSnapshot.save(this, file);
+		} catch (IOException e) {
+			BeanBoxException.throwEX("Fail to save snapshot: " + file, e);
+		}
+		return this;
+	}
+
+	/**
+	 * Load BeanBoxes and bindings saved by saveSnapshot. A BeanBox is ignored if
+	 * its class or super classes' class files changed after saved, or already
+	 * exist in this context, they will be built from annotations when used. A
+	 * binding is ignored if same shortcut already bound. If file not exist or is
+	 * broken, nothing loaded. Can not load into a frozen context.
+	 * 
+	 * @return How many BeanBoxes loaded
+	 */
+	public int loadSnapshot(File file) {
+		BeanBoxException.assureNotNull(file, "Snapshot file can not be null");
+		if (root().frozen)
+			BeanBoxException.throwEX("Can not load snapshot into a frozen BeanBoxContext");
+		if (!file.isFile())
+			return 0;
+		try {
+			return BeanBoxSnapshot.load(this, file);
+		} catch (IOException e) {// NOSONAR
+			return 0;
 		}
-		return bean;
 	}
 
 	public BeanBoxContext bind(Object shortcut, Object target) {
 		BeanBoxException.assureNotNull(shortcut, "bind shorcut can not be empty");
+		if (parent != null) { // bindings are shared with parent
+			root().bind(shortcut, target);
+			return this;
+		}
+		if (frozen)
+			BeanBoxException.throwEX("Can not bind on a frozen BeanBoxContext, bind on its fork instead");
 		bindCache.put(shortcut, target);
+		bindingsChanged();
 		return this;
 	}
 
 	public BeanBoxContext addContextAop(Object aop, String classNameRegex, String methodNameRegex) {
+		assureSettingsChangeable();
 		if (aopRules == null)
 			aopRules = new ArrayList<Object[]>();
 		aopRules.add(new Object[] { BeanBoxUtils.checkAOP(aop), classNameRegex, methodNameRegex });
+		planStamp = planStampSeed.incrementAndGet();
 		return this;
 	}
 
@@ -335,17 +904,17 @@ public class BeanBoxContext {
 	protected void staticMethods________________________() {// NOSONAR
 	}
 
-	private static Object[] param2RealObjects(BeanBoxContext ctx, Set<Object> history, BeanBox[] boxes) {
+	static Object[] param2RealObjects(BeanBoxContext ctx, BeanBox[] boxes) {
 		Object[] result = new Object[boxes.length];
 		for (int i = 0; i < boxes.length; i++) {
-			result[i] = ctx.getBeanFromBox(boxes[i], true, history);
+			result[i] = ctx.getBeanFromBox(boxes[i], true);
 			if (result[i] != null && result[i] instanceof String)
 				result[i] = ctx.valueTranslator.translate((String) result[i], boxes[i].getType());
 		}
 		return result;
 	}
 
-	private static Object notfoundOrException(Object target, boolean required) {
+	static Object notfoundOrException(Object target, boolean required) {
 		if (required)
 			return BeanBoxException.throwEX("BeanBox target not found: " + target);
 		else
@@ -392,6 +961,38 @@ public class BeanBoxContext {
 		BeanBoxContext.globalNextAllowSpringJsrAnnotation = globalNextAllowSpringJsrAnnotation;
 	}
 
+	public static boolean isGlobalNextAllowBytecodeFactory() {
+		return globalNextAllowBytecodeFactory;
+	}
+
+	public static void setGlobalNextAllowBytecodeFactory(boolean globalNextAllowBytecodeFactory) {
+		BeanBoxContext.globalNextAllowBytecodeFactory = globalNextAllowBytecodeFactory;
+	}
+
+	public static boolean isGlobalNextAllowGeneratedBeanBox() {
+		return globalNextAllowGeneratedBeanBox;
+	}
+
+	public static void setGlobalNextAllowGeneratedBeanBox(boolean globalNextAllowGeneratedBeanBox) {
+		BeanBoxContext.globalNextAllowGeneratedBeanBox = globalNextAllowGeneratedBeanBox;
+	}
+
+	public static boolean isGlobalNextPrototypeAopPerCall() {
+		return globalNextPrototypeAopPerCall;
+	}
+
+	public static void setGlobalNextPrototypeAopPerCall(boolean globalNextPrototypeAopPerCall) {
+		BeanBoxContext.globalNextPrototypeAopPerCall = globalNextPrototypeAopPerCall;
+	}
+
+	public static boolean isGlobalNextEagerMethodProxy() {
+		return globalNextEagerMethodProxy;
+	}
+
+	public static void setGlobalNextEagerMethodProxy(boolean globalNextEagerMethodProxy) {
+		BeanBoxContext.globalNextEagerMethodProxy = globalNextEagerMethodProxy;
+	}
+
 	public static ValueTranslator getGlobalNextParamTranslator() {
 		return globalNextValueTranslator;
 	}
@@ -416,6 +1017,7 @@ public class BeanBoxContext {
 	}
 
 	public BeanBoxContext setAllowAnnotation(boolean allowAnnotation) {
+		assureSettingsChangeable();
 		this.allowAnnotation = allowAnnotation;
 		return this;
 	}
@@ -425,25 +1027,118 @@ public class BeanBoxContext {
 	}
 
 	public BeanBoxContext setAllowSpringJsrAnnotation(boolean allowSpringJsrAnnotation) {
+		assureSettingsChangeable();
 		this.allowSpringJsrAnnotation = allowSpringJsrAnnotation;
 		return this;
 	}
 
+	public boolean isAllowBytecodeFactory() {
+		return allowBytecodeFactory;
+	}
+
+	/**
+	 * If set true, BeanBoxes will be compiled to use bytecode generated
+	 * BeanFactory instead of reflection to call constructors, set fields and call
+	 * methods, members can not be accessed directly still use reflection
+	 */
+	public BeanBoxContext setAllowBytecodeFactory(boolean allowBytecodeFactory) {
+		assureSettingsChangeable();
+		this.allowBytecodeFactory = allowBytecodeFactory;
+		planStamp = planStampSeed.incrementAndGet();
+		return this;
+	}
+
+	public boolean isAllowGeneratedBeanBox() {
+		return allowGeneratedBeanBox;
+	}
+
+	/**
+	 * If set true, BeanBoxes generated at compile time by jBeanBox annotation
+	 * processor (listed in META-INF/jbeanbox/beanbox.index) will be used instead
+	 * of reading annotations by reflection, classes not in index still use
+	 * reflection
+	 */
+	public BeanBoxContext setAllowGeneratedBeanBox(boolean allowGeneratedBeanBox) {
+		assureSettingsChangeable();
+		this.allowGeneratedBeanBox = allowGeneratedBeanBox;
+		return this;
+	}
+
+	public boolean isPrototypeAopPerCall() {
+		return prototypeAopPerCall;
+	}
+
+	/**
+	 * AOP interceptors of a method are got from context only once when the method
+	 * first time called, if set true, prototype interceptors will be created for
+	 * each call
+	 */
+	public BeanBoxContext setPrototypeAopPerCall(boolean prototypeAopPerCall) {
+		assureSettingsChangeable();
+		this.prototypeAopPerCall = prototypeAopPerCall;
+		planStamp = planStampSeed.incrementAndGet();
+		return this;
+	}
+
+	public boolean isEagerMethodProxy() {
+		return eagerMethodProxy;
+	}
+
+	/**
+	 * cglib generates FastClasses of an advised method when it first time called,
+	 * if set true, they are generated when proxy class created, use
+	 * preInstantiateSingletons(executor) to do it in background threads
+	 */
+	public BeanBoxContext setEagerMethodProxy(boolean eagerMethodProxy) {
+		this.eagerMethodProxy = eagerMethodProxy;
+		return this;
+	}
+
+	public File getProxyCacheDir() {
+		return proxyCacheDir;
+	}
+
+	/**
+	 * Set a directory to save bytes of generated AOP proxy classes, next start
+	 * they are loaded from this directory instead of generated again, a proxy
+	 * class is generated again if class files of bean class changed
+	 */
+	public BeanBoxContext setProxyCacheDir(File proxyCacheDir) {
+		if (proxyCacheDir != null)
+			proxyCacheDir.mkdirs();// NOSONAR
+		this.proxyCacheDir = proxyCacheDir;
+		return this;
+	}
+
+	public DestroyListener getDestroyListener() {
+		return destroyListener;
+	}
+
+	/** Set a listener to receive cost time and error of each preDestroy method */
+	public BeanBoxContext setDestroyListener(DestroyListener destroyListener) {
+		this.destroyListener = destroyListener;
+		return this;
+	}
+
 	public ValueTranslator getValueTranslator() {
 		return valueTranslator;
 	}
 
 	public BeanBoxContext setValueTranslator(ValueTranslator valueTranslator) {
+		assureSettingsChangeable();
 		this.valueTranslator = valueTranslator;
 		return this;
 	}
 
+	/** Return a read only view of bindings, change bindings by bind method */
 	public Map<Object, Object> getBindCache() {
-		return bindCache;
+		return Collections.unmodifiableMap(bindCache);
 	}
 
 	public BeanBoxContext setBindCache(Map<Object, Object> bindCache) {
+		assureSettingsChangeable();
 		this.bindCache = bindCache;
+		bindingsChanged();
 		return this;
 	}
 
@@ -452,6 +1147,7 @@ public class BeanBoxContext {
 	}
 
 	public BeanBoxContext setBeanBoxMetaCache(Map<Class<?>, BeanBox> beanBoxMetaCache) {
+		assureSettingsChangeable();
 		this.beanBoxMetaCache = beanBoxMetaCache;
 		return this;
 	}
@@ -466,11 +1162,13 @@ public class BeanBoxContext {
 	}
 
 	public List<Object[]> getAopRules() {
-		return aopRules;
+		return parent != null ? root().aopRules : aopRules;
 	}
 
 	public BeanBoxContext setAopRules(List<Object[]> aopRules) {
+		assureSettingsChangeable();
 		this.aopRules = aopRules;
+		planStamp = planStampSeed.incrementAndGet();
 		return this;
 	}
 
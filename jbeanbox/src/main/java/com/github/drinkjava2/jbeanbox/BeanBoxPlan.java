@@ -0,0 +1,471 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BeanBoxPlan is the compiled form of a BeanBox, it's a flat array of steps to
+ * create, cache, config and inject a bean. A plan is compiled once when a
+ * BeanBox be used first time in a BeanBoxContext, after that getBean only run
+ * these steps one by one, no need check the BeanBox's shape again.
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+class BeanBoxPlan {// NOSONAR
+	protected final int owner; // id of BeanBoxContext compiled it
+	protected final int stamp; // BeanBoxContext's planStamp when compiled
+	protected final int changes; // BeanBox's changes when compiled
+	protected final boolean singleton; // if true, bean will be cached
+	protected final Step[] steps; // first step create bean, others fill it
+
+	protected BeanBoxPlan(int owner, int stamp, int changes, boolean singleton, Step[] steps) {
+		this.owner = owner;
+		this.stamp = stamp;
+		this.changes = changes;
+		this.singleton = singleton;
+		this.steps = steps;
+	}
+
+	/** Run all steps to build a bean */
+	protected Object build(BeanBoxContext ctx, boolean required) {
+		Object bean = null;
+		for (Step step : steps)
+			bean = step.run(ctx, bean, required);
+		return bean;
+	}
+
+	/** Compile a BeanBox to a BeanBoxPlan for given BeanBoxContext */
+	protected static BeanBoxPlan compile(BeanBoxContext ctx, BeanBox box) {// NOSONAR
+		int stamp = ctx.planStamp; // read before compile, a change during compiling makes plan stale
+		int changes = box.changes;
+		List<Step> steps = new ArrayList<Step>();
+		if (box.isPureValue()) // if constant?
+			steps.add(new ValueStep(box.getTarget()));
+		else if (box.getTarget() != null) {// if target?
+			if (EMPTY.class != box.getTarget())
+				steps.add(new TargetStep(box.getTarget(), box.isRequired()));
+			else if (box.getType() != null)
+				steps.add(new TargetStep(box.getType(), box.isRequired()));
+			else
+				steps.add(new NotFoundStep(box.getTarget(), box.isRequired()));
+		} else {
+			Field[] fields = new Field[0];
+			BeanBox[] fieldBoxes = new BeanBox[0];
+			if (box.getFieldInjects() != null) {
+				fields = box.getFieldInjects().keySet().toArray(fields);
+				fieldBoxes = new BeanBox[fields.length];
+				for (int i = 0; i < fields.length; i++)
+					fieldBoxes[i] = box.getFieldInjects().get(fields[i]);
+			}
+			List<Method> methodList = new ArrayList<Method>();
+			if (box.getPostConstruct() != null)
+				methodList.add(box.getPostConstruct());
+			if (box.getMethodInjects() != null)
+				methodList.addAll(box.getMethodInjects().keySet());
+			Method[] methods = methodList.toArray(new Method[methodList.size()]);
+
+			BeanFactory factory = null;
+			if (ctx.isAllowBytecodeFactory() && box.getBeanClass() != null && EMPTY.class != box.getBeanClass())
+				factory = FactoryUtils.createBeanFactory(box.getBeanClass(), box.getConstructor(), fields, methods);
+
+			Step creator = compileCreator(ctx, box, factory);
+			steps.add(creator);
+			if (!(creator instanceof NotFoundStep)) {
+				compileFillSteps(box, steps, factory, fields, fieldBoxes, methods);
+				if (box.getProxyInterfaces() != null)
+					steps.add(new InterfaceProxyStep(box));
+			}
+		}
+		return new BeanBoxPlan(ctx.contextId, stamp, changes, box.getSingletonId() != null,
+				steps.toArray(new Step[steps.size()]));
+	}
+
+	private static Step compileCreator(BeanBoxContext ctx, BeanBox box, BeanFactory factory) {// NOSONAR
+		boolean aopFound = false;// is AOP?
+		if (box.getAopRules() != null || box.getMethodAops() != null)
+			aopFound = true;
+		else if (box.getBeanClass() != null) // global AOP
+			aopFound = !ctx.matchAopRules(box.getBeanClass().getName()).isEmpty();
+		if (aopFound && box.getProxyInterfaces() == null)
+			return new ProxyStep(new AopUtils.ProxyMaker(box.getBeanClass(), box, ctx)); // otherwise create bean normally then wrap it
+		if (box.getCreateMethod() != null) { // if have create method?
+			int paramCount = box.getCreateMethod().getParameterTypes().length;
+			if (paramCount > 1)
+				BeanBoxException.throwEX("Create method can only have 0 or 1 parameter");
+			return new CreateMethodStep(box, paramCount == 1);
+		}
+		if (box.getConstructor() != null) {// has constructor?
+			if (factory != null && factory.isCreateSupported())
+				return new FactoryCreateStep(factory, box.getConstructorParams(), box.getBeanClass());
+			return new ConstructorStep(box);
+		}
+		if (box.getBeanClass() != null) { // is normal bean
+			if (EMPTY.class == box.getBeanClass())
+				return new NotFoundStep(EMPTY.class, null);
+			if (factory != null && factory.isCreateSupported())
+				return new FactoryCreateStep(factory, null, box.getBeanClass());
+			return new NewInstanceStep(box.getBeanClass());
+		}
+		return new NotFoundStep(null, null); // return null or throw EX
+	}
+
+	private static void compileFillSteps(BeanBox box, List<Step> steps, BeanFactory factory, Field[] fields, // NOSONAR
+			BeanBox[] fieldBoxes, Method[] methods) {
+		// Cache bean or proxy bean right now for circular dependency use
+		if (box.getSingletonId() != null)
+			steps.add(new SingletonStep(box));
+		if (box.getConfigMethod() != null) {// ====config method of this BeanBox
+			int paramCount = box.getConfigMethod().getParameterTypes().length;
+			if (paramCount != 1 && paramCount != 2)
+				BeanBoxException.throwEX("Config method can only have 1 or 2 parameters");
+			steps.add(new ConfigMethodStep(box, paramCount == 2));
+		}
+		int methodIndex = 0;
+		if (box.getPostConstruct() != null) // PostConstructor
+			steps.add(methodStep(factory, methodIndex++, methods[0], null));
+		for (int i = 0; i < fields.length; i++) // Fields inject
+			if (factory != null && factory.isFieldSupported(i))
+				steps.add(new FactoryFieldStep(fields[i], fieldBoxes[i], factory, i));
+			else
+				steps.add(new FieldStep(fields[i], fieldBoxes[i]));
+		for (; methodIndex < methods.length; methodIndex++) { // Methods inject
+			BeanBox[] paramBoxes = box.getMethodInjects().get(methods[methodIndex]);
+			steps.add(methodStep(factory, methodIndex, methods[methodIndex],
+					paramBoxes != null && paramBoxes.length > 0 ? paramBoxes : null));
+		}
+	}
+
+	private static Step methodStep(BeanFactory factory, int index, Method method, BeanBox[] params) {
+		if (factory != null && factory.isMethodSupported(index))
+			return new FactoryMethodStep(method, params, factory, index);
+		return new MethodStep(method, params);
+	}
+
+	protected void belowAreSteps__________________________() {// NOSONAR
+	}
+
+	/** A step receive the bean built by former step, return the bean */
+	abstract static class Step {
+		abstract Object run(BeanBoxContext ctx, Object bean, boolean required);
+	}
+
+	static class ValueStep extends Step {
+		final Object value;
+
+		ValueStep(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		Object run(BeanBoxContext ctx, Object bean, boolean required) {
+			return value;
+		}
+	}
+
+	static class TargetStep extends Step {
+		final Object target;
+		final boolean targetRequired;
+
+		TargetStep(Object target, boolean targetRequired) {
+			this.target = target;
+			this.targetRequired = targetRequired;
+		}
+
+		@Override
+		Object run(BeanBoxContext ctx, Object bean, boolean required) {
+			return ctx.getBean(target, targetRequired);
+		}
+	}
+
+	static class NotFoundStep extends Step {
+		final Object target;
+		final Boolean targetRequired; // if null, use caller's required
+
+		NotFoundStep(Object target, Boolean targetRequired) {
+			this.target = target;
+			this.targetRequired = targetRequired;
+		}
+
+		@Override
+		Object run(BeanBoxContext ctx, Object bean, boolean required) {
+			return BeanBoxContext.notfoundOrException(target, targetRequired == null ? required : targetRequired);
+		}
+	}
+
+	static class ProxyStep extends Step {
+		final AopUtils.ProxyMaker maker;
+
+		ProxyStep(AopUtils.ProxyMaker maker) {
+			this.maker = maker;
+		}
+
+		@Override
+		Object run(BeanBoxContext ctx, Object bean, boolean required) {
+			return maker.create(ctx);
+		}
+	}
+
+	static class CreateMethodStep extends Step {
+		final BeanBox box;
+		final Method method;
+		final boolean withCaller;
+
+		CreateMethodStep(BeanBox box, boolean withCaller) {
+			this.box = box;
+			this.method = box.getCreateMethod();
+			this.withCaller = withCaller;
+		}
+
+		@Override
+		Object run(BeanBoxContext ctx, Object bean, boolean required) {
+			Object result;
+			try {
+				if (withCaller)
+					result = method.invoke(box, new Caller(ctx, required, null));
+				else
+					result = method.invoke(box);
+				BeanBoxException.assureNotNull(result, "Create method created a null object.");
+			} catch (Exception e) {
+				return BeanBoxException.throwEX(e);
+			}
+			return result;
+		}
+	}
+
+	static class ConstructorStep extends Step {
+		final BeanBox box;
+		final BeanBox[] params;
+
+		ConstructorStep(BeanBox box) {
+			this.box = box;
+			BeanBox[] p = box.getConstructorParams();
+			this.params = p != null && p.length > 0 ? p : null;
+		}
+
+		@Override
+		Object run(BeanBoxContext ctx, Object bean, boolean required) {
+			if (params != null) {
+				Object[] initargs = BeanBoxContext.param2RealObjects(ctx, params);
+				try {
+					return box.getConstructor().newInstance(initargs);
+				} catch (Exception e) {
+					return BeanBoxException.throwEX(e);
+				}
+			} else // 0 param constructor
+				try {
+					return box.getConstructor().newInstance();
+				} catch (Exception e) {
+					return BeanBoxException.throwEX(e);
+				}
+		}
+	}
+
+	static class NewInstanceStep extends Step {
+		final Class<?> beanClass;
+
+		NewInstanceStep(Class<?> beanClass) {
+			this.beanClass = beanClass;
+		}
+
+		@Override
+		Object run(BeanBoxContext ctx, Object bean, boolean required) {
+			try {
+				return beanClass.newInstance();
+			} catch (Exception e) {
+				return BeanBoxException.throwEX("Failed to call 0 parameter constructor of: " + beanClass, e);
+			}
+		}
+	}
+
+	static class SingletonStep extends Step {
+		final BeanBox box;
+
+		SingletonStep(BeanBox box) {
+			this.box = box;
+		}
+
+		@Override
+		Object run(BeanBoxContext ctx, Object bean, boolean required) {
+			SingletonCreation creation = ctx.creatingSingletons.get(box);
+			if (creation != null) // early reference of interface AOP bean is its proxy
+				creation.early = box.getProxyInterfaces() == null ? bean
+						: AopUtils.createInterfaceProxy(bean, box, ctx);
+			return bean;
+		}
+	}
+
+	/** Wrap the filled bean by a JDK proxy, reuse the early one if have */
+	static class InterfaceProxyStep extends Step {
+		final BeanBox box;
+
+		InterfaceProxyStep(BeanBox box) {
+			this.box = box;
+		}
+
+		@Override
+		Object run(BeanBoxContext ctx, Object bean, boolean required) {
+			if (bean == null)
+				return null;
+			Object early = ctx.earlySingleton(box);
+			if (early != null)
+				return early;
+			return AopUtils.createInterfaceProxy(bean, box, ctx);
+		}
+	}
+
+	static class ConfigMethodStep extends Step {
+		final BeanBox box;
+		final Method method;
+		final boolean withCaller;
+
+		ConfigMethodStep(BeanBox box, boolean withCaller) {
+			this.box = box;
+			this.method = box.getConfigMethod();
+			this.withCaller = withCaller;
+		}
+
+		@Override
+		Object run(BeanBoxContext ctx, Object bean, boolean required) {
+			try {
+				if (withCaller)
+					method.invoke(box, bean, new Caller(ctx, required, bean));
+				else
+					method.invoke(box, bean);
+			} catch (Exception e) {
+				return BeanBoxException.throwEX(e);
+			}
+			return bean;
+		}
+	}
+
+	static class FieldStep extends Step {
+		final Field field;
+		final BeanBox inject;
+
+		FieldStep(Field field, BeanBox inject) {
+			this.field = field;
+			this.inject = inject;
+		}
+
+		@Override
+		Object run(BeanBoxContext ctx, Object bean, boolean required) {
+			Object fieldValue = ctx.getBeanFromBox(inject, false);
+			if (EMPTY.class == fieldValue) {
+				if (inject.isRequired())
+					BeanBoxException.throwEX("Not found required value for field: " + field.getName() + " in "
+							+ field.getDeclaringClass().getName());
+			} else {
+				if (fieldValue instanceof String)
+					fieldValue = ctx.valueTranslator.translate((String) fieldValue, inject.getType());
+				setValue(bean, fieldValue);
+			}
+			return bean;
+		}
+
+		void setValue(Object bean, Object value) {
+			ReflectionUtils.setField(field, bean, value);
+		}
+	}
+
+	static class FactoryFieldStep extends FieldStep {
+		final BeanFactory factory;
+		final int index;
+
+		FactoryFieldStep(Field field, BeanBox inject, BeanFactory factory, int index) {
+			super(field, inject);
+			this.factory = factory;
+			this.index = index;
+		}
+
+		@Override
+		void setValue(Object bean, Object value) {
+			try {
+				factory.setField(index, bean, value);
+			} catch (Exception e) {
+				ReflectionUtils.handleReflectionException(e);
+			}
+		}
+	}
+
+	/** Used for PostConstruct and method inject */
+	static class MethodStep extends Step {
+		final Method method;
+		final BeanBox[] params; // null if no parameter
+
+		MethodStep(Method method, BeanBox[] params) {
+			this.method = method;
+			this.params = params;
+		}
+
+		@Override
+		Object run(BeanBoxContext ctx, Object bean, boolean required) {
+			if (params != null)
+				call(bean, BeanBoxContext.param2RealObjects(ctx, params));
+			else
+				call(bean, null);
+			return bean;
+		}
+
+		void call(Object bean, Object[] args) {
+			if (args != null)
+				ReflectionUtils.invokeMethod(method, bean, args);
+			else
+				ReflectionUtils.invokeMethod(method, bean);
+		}
+	}
+
+	static class FactoryMethodStep extends MethodStep {
+		final BeanFactory factory;
+		final int index;
+
+		FactoryMethodStep(Method method, BeanBox[] params, BeanFactory factory, int index) {
+			super(method, params);
+			this.factory = factory;
+			this.index = index;
+		}
+
+		@Override
+		void call(Object bean, Object[] args) {
+			try {
+				factory.invoke(index, bean, args);
+			} catch (Exception e) {
+				ReflectionUtils.handleReflectionException(e);
+			}
+		}
+	}
+
+	static class FactoryCreateStep extends Step {
+		final BeanFactory factory;
+		final BeanBox[] params; // null if no parameter
+		final Class<?> beanClass;
+
+		FactoryCreateStep(BeanFactory factory, BeanBox[] params, Class<?> beanClass) {
+			this.factory = factory;
+			this.params = params != null && params.length > 0 ? params : null;
+			this.beanClass = beanClass;
+		}
+
+		@Override
+		Object run(BeanBoxContext ctx, Object bean, boolean required) {
+			Object[] initargs = params == null ? null : BeanBoxContext.param2RealObjects(ctx, params);
+			try {
+				return factory.create(initargs);
+			} catch (Exception e) {
+				return BeanBoxException.throwEX("Failed to create bean by BeanFactory for: " + beanClass, e);
+			}
+		}
+	}
+
+}
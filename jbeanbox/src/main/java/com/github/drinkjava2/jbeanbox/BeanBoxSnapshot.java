@@ -0,0 +1,436 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * BeanBoxSnapshot save BeanBoxes built from annotations and simple bindings of
+ * a BeanBoxContext to a binary file, and load them back. Each BeanBox store the
+ * size and last modified time of its class file and super classes' class files,
+ * if any of them changed, the BeanBox is ignored and will be built again from
+ * annotations. BeanBoxes can not be saved (BeanBox subclasses, interceptor
+ * instances...) are not saved.
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+final class BeanBoxSnapshot {
+	private static final int MAGIC = 0x4A424258; // "JBBX"
+	private static final int VERSION = 2;
+
+	private static final byte NULL = 0;
+	private static final byte CLASS = 1;
+	private static final byte STRING = 2;
+	private static final byte BOX = 3;
+
+	private static final Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+	static {
+		for (Class<?> c : new Class<?>[] { int.class, long.class, short.class, byte.class, char.class, boolean.class,
+				float.class, double.class, void.class })
+			PRIMITIVES.put(c.getName(), c);
+	}
+
+	/** Throw when a BeanBox or value can not be saved */
+	static class UnsupportedException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private BeanBoxSnapshot() {
+	}
+
+	/** Save given context's BeanBoxes and simple bindings to file */
+	static void save(BeanBoxContext ctx, File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeBoolean(ctx.allowAnnotation);
+			out.writeBoolean(ctx.allowSpringJsrAnnotation);
+			out.writeBoolean(ctx.allowGeneratedBeanBox);
+
+			List<Entry<Object, Object>> binds = new ArrayList<Entry<Object, Object>>();
+			for (Entry<Object, Object> bind : ctx.bindCache.entrySet())
+				if (isSimple(bind.getKey()) && isSimple(bind.getValue()))
+					binds.add(bind);
+			out.writeInt(binds.size());
+			for (Entry<Object, Object> bind : binds) {
+				writeSimple(out, bind.getKey());
+				writeSimple(out, bind.getValue());
+			}
+
+			List<byte[]> boxes = new ArrayList<byte[]>();
+			for (Entry<Class<?>, BeanBox> entry : ctx.beanBoxMetaCache.entrySet()) {
+				byte[] bytes = boxToBytes(entry.getKey(), entry.getValue());
+				if (bytes != null)
+					boxes.add(bytes);
+			}
+			out.writeInt(boxes.size());
+			for (byte[] bytes : boxes) {
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Load BeanBoxes and bindings from file, return how many BeanBoxes loaded, a
+	 * broken or incompatible file is ignored
+	 */
+	static int load(BeanBoxContext ctx, File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return 0;
+			if (in.readBoolean() != ctx.allowAnnotation || in.readBoolean() != ctx.allowSpringJsrAnnotation
+					|| in.readBoolean() != ctx.allowGeneratedBeanBox)
+				return 0; // BeanBoxes built by other settings
+			ClassLoader loader = classLoader();
+			Map<Object, Object> binds = new HashMap<Object, Object>();
+			for (int i = in.readInt(); i > 0; i--) {
+				Object key = readValue(in, loader);
+				binds.put(key, readValue(in, loader));
+			}
+			for (Entry<Object, Object> bind : binds.entrySet())
+				if (!ctx.bindCache.containsKey(bind.getKey()))
+					ctx.bind(bind.getKey(), bind.getValue());
+
+			int loaded = 0;
+			for (int i = in.readInt(); i > 0; i--) {
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				if (loadBox(ctx, bytes, loader))
+					loaded++;
+			}
+			return loaded;
+		} catch (Exception e) {// NOSONAR broken file or binding class not found
+			return 0;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static ClassLoader classLoader() {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		return loader != null ? loader : BeanBoxSnapshot.class.getClassLoader();
+	}
+
+	private static boolean isSimple(Object o) {
+		return o instanceof String || o instanceof Class;
+	}
+
+	protected void belowAreWriteMethods__________________________() {// NOSONAR
+	}
+
+	/** Save a BeanBox with stamps of its classes, return null if can not save */
+	private static byte[] boxToBytes(Class<?> clazz, BeanBox box) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeUTF(clazz.getName());
+			List<Class<?>> classes = new ArrayList<Class<?>>();
+			for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass())
+				classes.add(c);
+			out.writeInt(classes.size());
+			for (Class<?> c : classes) {
+				long[] stamp = stamp(c);
+				if (stamp == null)
+					return null;
+				out.writeUTF(c.getName());
+				out.writeLong(stamp[0]);
+				out.writeLong(stamp[1]);
+			}
+			writeBox(out, box);
+			out.close();
+			return bytes.toByteArray();
+		} catch (UnsupportedException e) {
+			return null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/** Return size and last modified time of class file, null if not found */
+	static long[] stamp(Class<?> c) {
+		try {
+			String name = c.getName();
+			URL url = c.getResource(name.substring(name.lastIndexOf('.') + 1) + ".class");
+			if (url == null)
+				return null;
+			if ("file".equals(url.getProtocol())) {
+				File f = new File(url.toURI());
+				return new long[] { f.length(), f.lastModified() };
+			}
+			URLConnection conn = url.openConnection();
+			long[] result = new long[] { conn.getContentLength(), conn.getLastModified() };
+			conn.getInputStream().close();
+			return result;
+		} catch (Exception e) {// NOSONAR
+			return null;
+		}
+	}
+
+	private static void writeBox(DataOutputStream out, BeanBox box) throws IOException, UnsupportedException {// NOSONAR
+		if (box.getClass() != BeanBox.class || box.getCreateMethod() != null || box.getConfigMethod() != null)
+			throw new UnsupportedException(); // BeanBox subclass is built by newInstance, no need save
+		if (box.getProxyInterfaces() != null)
+			throw new UnsupportedException(); // only set by Java configuration
+		writeClass(out, box.getBeanClass());
+		out.writeByte(box.getSingleton() == null ? 0 : box.getSingleton() ? 1 : 2);
+		writeValue(out, box.getScope());
+		writeValue(out, box.getTarget());
+		out.writeBoolean(box.isPureValue());
+		out.writeBoolean(box.isRequired());
+		writeClass(out, box.getType());
+
+		out.writeBoolean(box.getConstructor() != null);
+		if (box.getConstructor() != null) {
+			writeClass(out, box.getConstructor().getDeclaringClass());
+			writeClasses(out, box.getConstructor().getParameterTypes());
+		}
+		writeBoxes(out, box.getConstructorParams());
+		writeMethod(out, box.getPostConstruct());
+		writeMethod(out, box.getPreDestroy());
+
+		Map<Field, BeanBox> fields = box.getFieldInjects();
+		out.writeInt(fields == null ? -1 : fields.size());
+		if (fields != null)
+			for (Entry<Field, BeanBox> entry : fields.entrySet()) {
+				writeClass(out, entry.getKey().getDeclaringClass());
+				out.writeUTF(entry.getKey().getName());
+				writeBox(out, entry.getValue());
+			}
+
+		Map<Method, BeanBox[]> methods = box.getMethodInjects();
+		out.writeInt(methods == null ? -1 : methods.size());
+		if (methods != null)
+			for (Entry<Method, BeanBox[]> entry : methods.entrySet()) {
+				writeMethod(out, entry.getKey());
+				writeBoxes(out, entry.getValue());
+			}
+
+		Map<Method, List<Object>> aops = box.getMethodAops();
+		out.writeInt(aops == null ? -1 : aops.size());
+		if (aops != null)
+			for (Entry<Method, List<Object>> entry : aops.entrySet()) {
+				writeMethod(out, entry.getKey());
+				out.writeInt(entry.getValue().size());
+				for (Object aop : entry.getValue())
+					writeValue(out, aop);
+			}
+
+		List<Object[]> rules = box.getAopRules();
+		out.writeInt(rules == null ? -1 : rules.size());
+		if (rules != null)
+			for (Object[] rule : rules) {
+				writeValue(out, rule[0]);
+				writeValue(out, rule[1]);
+			}
+	}
+
+	private static void writeBoxes(DataOutputStream out, BeanBox[] boxes) throws IOException, UnsupportedException {
+		out.writeInt(boxes == null ? -1 : boxes.length);
+		if (boxes != null)
+			for (BeanBox b : boxes)
+				writeBox(out, b);
+	}
+
+	private static void writeMethod(DataOutputStream out, Method m) throws IOException {
+		out.writeBoolean(m != null);
+		if (m != null) {
+			writeClass(out, m.getDeclaringClass());
+			out.writeUTF(m.getName());
+			writeClasses(out, m.getParameterTypes());
+		}
+	}
+
+	private static void writeClasses(DataOutputStream out, Class<?>[] classes) throws IOException {
+		out.writeInt(classes.length);
+		for (Class<?> c : classes)
+			writeClass(out, c);
+	}
+
+	private static void writeClass(DataOutputStream out, Class<?> c) throws IOException {
+		out.writeUTF(c == null ? "" : c.getName());
+	}
+
+	/** Write a Class or String value */
+	private static void writeSimple(DataOutputStream out, Object value) throws IOException {
+		if (value instanceof Class) {
+			out.writeByte(CLASS);
+			writeClass(out, (Class<?>) value);
+		} else {
+			out.writeByte(STRING);
+			out.writeUTF((String) value);
+		}
+	}
+
+	/** Only null, Class, String and BeanBox values can be saved */
+	private static void writeValue(DataOutputStream out, Object value) throws IOException, UnsupportedException {
+		if (value == null)
+			out.writeByte(NULL);
+		else if (isSimple(value))
+			writeSimple(out, value);
+		else if (value instanceof BeanBox) {
+			out.writeByte(BOX);
+			writeBox(out, (BeanBox) value);
+		} else
+			throw new UnsupportedException();
+	}
+
+	protected void belowAreReadMethods__________________________() {// NOSONAR
+	}
+
+	/** Check stamps then put BeanBox into context, return false if stamps changed */
+	private static boolean loadBox(BeanBoxContext ctx, byte[] bytes, ClassLoader loader) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			Class<?> clazz = readClass(in, loader);
+			if (ctx.beanBoxMetaCache.containsKey(clazz))
+				return false;
+			for (int i = in.readInt(); i > 0; i--) {
+				long[] stamp = stamp(readClass(in, loader));
+				if (stamp == null || stamp[0] != in.readLong() || stamp[1] != in.readLong())
+					return false;
+			}
+			BeanBox box = readBox(in, loader);
+			return BeanBoxUtils.publishBeanBox(ctx, clazz, box) == box;
+		} catch (Exception e) {// NOSONAR class or member not found, will read annotations again
+			return false;
+		}
+	}
+
+	private static BeanBox readBox(DataInputStream in, ClassLoader loader) throws Exception {// NOSONAR
+		BeanBox box = new BeanBox();
+		box.setBeanClass(readClass(in, loader));
+		byte singleton = in.readByte();
+		box.setSingleton(singleton == 0 ? null : singleton == 1);
+		box.setScope((String) readValue(in, loader));
+		box.setTarget(readValue(in, loader));
+		box.setPureValue(in.readBoolean());
+		box.setRequired(in.readBoolean());
+		box.setType(readClass(in, loader));
+
+		if (in.readBoolean()) {
+			Class<?> c = readClass(in, loader);
+			box.setConstructor(c.getConstructor(readClasses(in, loader)));
+		}
+		box.setConstructorParams(readBoxes(in, loader));
+		box.setPostConstruct(readMethod(in, loader));
+		box.setPreDestroy(readMethod(in, loader));
+
+		int size = in.readInt();
+		if (size >= 0) {
+			box.checkOrCreateFieldInjects();
+			for (int i = 0; i < size; i++) {
+				Field f = readClass(in, loader).getDeclaredField(in.readUTF());
+				ReflectionUtils.makeAccessible(f);
+				box.getFieldInjects().put(f, readBox(in, loader));
+			}
+		}
+
+		size = in.readInt();
+		if (size >= 0) {
+			box.checkOrCreateMethodInjects();
+			for (int i = 0; i < size; i++) {
+				Method m = readMethod(in, loader);
+				box.getMethodInjects().put(m, readBoxes(in, loader));
+			}
+		}
+
+		size = in.readInt();
+		if (size >= 0) {
+			box.checkOrCreateMethodAops();
+			for (int i = 0; i < size; i++) {
+				Method m = readMethod(in, loader);
+				List<Object> aops = new ArrayList<Object>();
+				for (int j = in.readInt(); j > 0; j--)
+					aops.add(readValue(in, loader));
+				box.getMethodAops().put(m, aops);
+			}
+		}
+
+		size = in.readInt();
+		if (size >= 0) {
+			box.checkOrCreateMethodAopRules();
+			for (int i = 0; i < size; i++)
+				box.getAopRules().add(new Object[] { readValue(in, loader), readValue(in, loader) });
+		}
+		return box;
+	}
+
+	private static BeanBox[] readBoxes(DataInputStream in, ClassLoader loader) throws Exception {// NOSONAR
+		int size = in.readInt();
+		if (size < 0)
+			return null; // NOSONAR
+		BeanBox[] boxes = new BeanBox[size];
+		for (int i = 0; i < size; i++)
+			boxes[i] = readBox(in, loader);
+		return boxes;
+	}
+
+	private static Method readMethod(DataInputStream in, ClassLoader loader) throws Exception {// NOSONAR
+		if (!in.readBoolean())
+			return null;
+		Class<?> c = readClass(in, loader);
+		Method m = c.getDeclaredMethod(in.readUTF(), readClasses(in, loader));
+		ReflectionUtils.makeAccessible(m);
+		return m;
+	}
+
+	private static Class<?>[] readClasses(DataInputStream in, ClassLoader loader)
+			throws IOException, ClassNotFoundException {
+		Class<?>[] classes = new Class<?>[in.readInt()];
+		for (int i = 0; i < classes.length; i++)
+			classes[i] = readClass(in, loader);
+		return classes;
+	}
+
+	private static Class<?> readClass(DataInputStream in, ClassLoader loader)
+			throws IOException, ClassNotFoundException {
+		String name = in.readUTF();
+		if (name.length() == 0)
+			return null;
+		Class<?> c = PRIMITIVES.get(name);
+		return c != null ? c : Class.forName(name, false, loader);
+	}
+
+	private static Object readValue(DataInputStream in, ClassLoader loader) throws Exception {// NOSONAR
+		byte tag = in.readByte();
+		if (tag == CLASS)
+			return readClass(in, loader);
+		if (tag == STRING)
+			return in.readUTF();
+		if (tag == BOX)
+			return readBox(in, loader);
+		return null;
+	}
+
+}
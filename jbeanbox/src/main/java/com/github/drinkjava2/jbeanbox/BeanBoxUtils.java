@@ -16,6 +16,10 @@ import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -42,12 +46,12 @@ public class BeanBoxUtils {// NOSONAR
 	/**
 	 * Translate a BeanBox class or normal class to a readOnly BeanBox instance
 	 */
-	public static BeanBox getUniqueBeanBox(BeanBoxContext ctx, Class<?> clazz) {
+	public static BeanBox getUniqueBeanBox(final BeanBoxContext ctx, final Class<?> clazz) {
 		BeanBoxException.assureNotNull(clazz, "Target class can not be null");
 		BeanBox box = ctx.beanBoxMetaCache.get(clazz);
 		if (box != null)
 			return box;
-		if (BeanBox.class.isAssignableFrom(clazz))
+		if (BeanBox.class.isAssignableFrom(clazz)) {
 			try {
 				box = (BeanBox) clazz.newInstance();
 				if (box.singleton == null)
@@ -55,12 +59,55 @@ public class BeanBoxUtils {// NOSONAR
 			} catch (Exception e) {
 				BeanBoxException.throwEX(e);
 			}
-		else
-			box = doCreateBeanBox(ctx, clazz);
+			return publishBeanBox(ctx, clazz, box);
+		}
+		if (!(ctx.beanBoxMetaCache instanceof ConcurrentMap))
+			return publishBeanBox(ctx, clazz, doCreateBeanBox(ctx, clazz));
+
+		// only one thread read annotations of a class, other threads wait for it
+		FutureTask<BeanBox> task = new FutureTask<BeanBox>(new Callable<BeanBox>() {
+			@Override
+			public BeanBox call() {
+				return publishBeanBox(ctx, clazz, doCreateBeanBox(ctx, clazz));
+			}
+		});
+		FutureTask<BeanBox> existed = ctx.creatingBeanBoxes.putIfAbsent(clazz, task);
+		if (existed != null)
+			return waitBeanBox(existed);
+		try {
+			box = ctx.beanBoxMetaCache.get(clazz); // other thread may just finished it
+			if (box != null)
+				return box;
+			task.run();
+			return waitBeanBox(task);
+		} finally {
+			ctx.creatingBeanBoxes.remove(clazz, task);
+		}
+	}
+
+	/** Put BeanBox into meta cache, if other thread already put one, use it */
+	static BeanBox publishBeanBox(BeanBoxContext ctx, Class<?> clazz, BeanBox box) {
+		if (ctx.beanBoxMetaCache instanceof ConcurrentMap) {
+			BeanBox existed = ((ConcurrentMap<Class<?>, BeanBox>) ctx.beanBoxMetaCache).putIfAbsent(clazz, box);
+			return existed == null ? box : existed;
+		}
 		ctx.beanBoxMetaCache.put(clazz, box);
 		return box;
 	}
 
+	private static BeanBox waitBeanBox(FutureTask<BeanBox> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return BeanBoxException.throwEX(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			return BeanBoxException.throwEX(e.getCause());
+		}
+	}
+
 	public static Constructor<?> getConstructor(Class<?> clazz, Class<?>... paramTypes) {// NOSONAR
 		try {
 			return clazz.getConstructor(paramTypes);
@@ -83,26 +130,34 @@ public class BeanBoxUtils {// NOSONAR
 		if (!ctx.isAllowAnnotation())
 			return box;
 		boolean allowSpringJsrAnno = ctx.allowSpringJsrAnnotation;
+		if (ctx.allowGeneratedBeanBox) { // use BeanBox generated by annotation processor if have
+			BeanBox generated = GeneratedBeanBoxes.create(clazz, allowSpringJsrAnno);
+			if (generated != null)
+				return generated;
+		}
+
+		Annotation[] annos = clazz.getAnnotations(); // read once, getAnnotations() copies array each time
 
 		// ========= singleton or prototype
-		if (checkAnnoExist(clazz, PROTOTYPE.class))
+		if (checkAnnoExist(annos, PROTOTYPE.class))
 			box.setSingleton(false);
 		else if (allowSpringJsrAnno) {
-			Map<String, Object> m = getAnnoAsMap(clazz, "org.springframework.context.annotation.Scope");
+			Map<String, Object> m = getAnnoAsMap(annos, "org.springframework.context.annotation.Scope");
 			if (m != null)
 				for (Entry<String, Object> entry : m.entrySet())
 					if ("value".equals(entry.getKey())) {
-						if ("prototype".equalsIgnoreCase(String.valueOf(entry.getValue())))
+						String scope = String.valueOf(entry.getValue());
+						if ("prototype".equalsIgnoreCase(scope))
 							box.setSingleton(false);
-						else if ("singleton".equalsIgnoreCase(String.valueOf(entry.getValue())))
+						else if ("singleton".equalsIgnoreCase(scope) || scope.length() == 0)
 							box.setSingleton(true);
 						else
-							BeanBoxException.throwEX("'prototype' or 'singleton' required in @Scope annotation");
+							box.setSingleton(false).setScope(scope); // request, session or custom scope
 					}
 		}
 
 		// ======== Class inject, if @INJECT, @PARAM put on class
-		Object[] v = getInjectAnnotationAsArray(clazz, allowSpringJsrAnno);
+		Object[] v = getInjectAsArray(annos, allowSpringJsrAnno);
 		if (v != null) {
 			box.setTarget(v[0]);
 			box.setPureValue((Boolean) v[1]);
@@ -110,7 +165,6 @@ public class BeanBoxUtils {// NOSONAR
 		}
 
 		// ======== AOP annotated annotations on class
-		Annotation[] annos = clazz.getAnnotations();
 		for (Annotation anno : annos) {
 			if (anno.annotationType().isAnnotationPresent(AOP.class)) {
 				Map<String, Object> annoMap = changeAnnotationValuesToMap(anno);
@@ -162,14 +216,18 @@ public class BeanBoxUtils {// NOSONAR
 		// @INJECT annotations on methods include super class's
 		Method[] methods = ReflectionUtils.getAllDeclaredMethods(clazz); 
 		for (Method m : methods) { 
+			Annotation[] mtdAnnos = m.getAnnotations();
+			if (mtdAnnos.length == 0)
+				continue; // most methods have no annotation
+
 			// ========== @PostConstruct and @PreDestory
-			if (m.getAnnotation(POSTCONSTRUCT.class) != null || m.getAnnotation(PostConstruct.class) != null) {
+			if (checkAnnoExist(mtdAnnos, POSTCONSTRUCT.class) || checkAnnoExist(mtdAnnos, PostConstruct.class)) {
 				if (m.getParameterTypes().length > 0)
 					BeanBoxException.throwEX("In jBeanBox, PostConstruct should have no parameter.");
 				ReflectionUtils.makeAccessible(m);
 				box.setPostConstruct(m);
 			}
-			if (m.getAnnotation(PREDESTROY.class) != null || m.getAnnotation(PreDestroy.class) != null) {
+			if (checkAnnoExist(mtdAnnos, PREDESTROY.class) || checkAnnoExist(mtdAnnos, PreDestroy.class)) {
 				if (m.getParameterTypes().length > 0)
 					BeanBoxException.throwEX("In jBeanBox, PostConstruct should have no parameter.");
 				ReflectionUtils.makeAccessible(m);
@@ -177,7 +235,6 @@ public class BeanBoxUtils {// NOSONAR
 			}
 
 			// ========== AOP about annotation =========
-			Annotation[] mtdAnnos = m.getAnnotations();
 			for (Annotation anno : mtdAnnos)
 				if (anno.annotationType().isAnnotationPresent(AOP.class)) {
 					Map<String, Object> annoMap = changeAnnotationValuesToMap(anno);
@@ -187,7 +244,7 @@ public class BeanBoxUtils {// NOSONAR
 				}
 
 			// =========== method inject annotation ==============
-			v = getInjectAnnotationAsArray(m, allowSpringJsrAnno);
+			v = getInjectAsArray(mtdAnnos, allowSpringJsrAnno);
 			if (v != null) {
 				ReflectionUtils.makeAccessible(m);
 				BeanBox oneParam = new BeanBox();
@@ -284,9 +341,8 @@ public class BeanBoxUtils {// NOSONAR
 			return BeanBoxException.throwEX("targetClass should be Field, Method, Constructor or Class");
 	}
 
-	/** Return all annotations for Class or Field */
-	private static Map<String, Object> getAnnoAsMap(Object targetClass, String annoFullName) {
-		Annotation[] anno = getAnnotations(targetClass);
+	/** Return values of annotation with given full name as Map, null if not found */
+	private static Map<String, Object> getAnnoAsMap(Annotation[] anno, String annoFullName) {
 		for (Annotation a : anno) {
 			Class<? extends Annotation> type = a.annotationType();
 			if (annoFullName.equals(type.getName()))
@@ -295,9 +351,8 @@ public class BeanBoxUtils {// NOSONAR
 		return null;
 	}
 
-	/** Check if annotation exist in Class or Field */
-	private static boolean checkAnnoExist(Object targetClass, Class<?> annoClass) {
-		Annotation[] anno = getAnnotations(targetClass);
+	/** Check if annotation exist in given annotations */
+	private static boolean checkAnnoExist(Annotation[] anno, Class<?> annoClass) {
 		for (Annotation annotation : anno) {
 			Class<? extends Annotation> type = annotation.annotationType();
 			if (annoClass.equals(type))
@@ -318,24 +373,14 @@ public class BeanBoxUtils {// NOSONAR
 	}
 
 	/**
-	 * A simple matcher for class and method name, only 1 * allowed <br/>
+	 * A simple matcher for class and method name, * matches any characters <br/>
 	 * "*abc.ef" matches "any.abc.ef", "anymoreabc.ef" ... <br/>
 	 * "abc.ef*" matches "abc.efg", "abc.efg.hj" ... <br/>
-	 * "abc*def" matches "abcd.efg.ddef", "abcany*anydef"
+	 * "abc*def" matches "abcd.efg.ddef", "abcany*anydef" <br/>
+	 * "*abc*" matches "abc", "anyabcany"
 	 */
 	public static boolean nameMatch(String regex, String name) {
-		if (regex == null || regex.length() == 0 || name == null || name.length() == 0)
-			return false;
-		if ('*' == (regex.charAt(0))) {
-			return name.endsWith(regex.substring(1));
-		} else if (regex.endsWith("*")) {
-			return name.startsWith(regex.substring(0, regex.length() - 1));
-		} else {
-			int starPos = regex.indexOf('*');
-			if (-1 == starPos)
-				return regex.equals(name);
-			return name.startsWith(regex.substring(0, starPos)) && name.endsWith(regex.substring(starPos + 1));
-		}
+		return NameMatcher.of(regex).matches(name);
 	}
 
 	/**
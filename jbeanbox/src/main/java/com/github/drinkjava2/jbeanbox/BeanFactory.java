@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+/**
+ * BeanFactory is the super class of bytecode generated bean factories, a
+ * generated factory directly call constructor, set fields and call methods of
+ * bean class without use reflection, see FactoryUtils. Members can not be
+ * accessed by generated code (for example private fields) are not supported,
+ * BeanBoxPlan use reflection for them.
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+public abstract class BeanFactory {
+	protected boolean createSupported; // if true, create method can be used
+	protected boolean[] fieldSupported; // if true, setField(index...) can be used
+	protected boolean[] methodSupported; // if true, invoke(index...) can be used
+
+	/** Call constructor to create a bean, args is null for 0 parameter constructor */
+	public Object create(Object[] args) throws Exception {// NOSONAR
+		return BeanBoxException.throwEX("Constructor is not supported by this BeanFactory");
+	}
+
+	/** Set value to the index-th field of bean */
+	public void setField(int index, Object bean, Object value) throws Exception {// NOSONAR
+		BeanBoxException.throwEX("Field " + index + " is not supported by this BeanFactory");
+	}
+
+	/** Call the index-th method of bean */
+	public void invoke(int index, Object bean, Object[] args) throws Exception {// NOSONAR
+		BeanBoxException.throwEX("Method " + index + " is not supported by this BeanFactory");
+	}
+
+	public boolean isCreateSupported() {
+		return createSupported;
+	}
+
+	public boolean isFieldSupported(int index) {
+		return fieldSupported != null && fieldSupported[index];
+	}
+
+	public boolean isMethodSupported(int index) {
+		return methodSupported != null && methodSupported[index];
+	}
+
+}
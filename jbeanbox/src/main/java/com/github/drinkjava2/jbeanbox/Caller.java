@@ -12,7 +12,7 @@ package com.github.drinkjava2.jbeanbox;
 import java.util.Set;
 
 /**
- * Caller store BeanBoxContext, required and history
+ * Caller store BeanBoxContext and required
  *
  * @author Yong Zhu
  * @since 2.4.8
@@ -21,22 +21,40 @@ import java.util.Set;
 public class Caller {
 	public BeanBoxContext ctx;// NOSONAR
 	public boolean required = true;// NOSONAR
-	public Set<Object> history;// NOSONAR
 	public Object result; // NOSONAR
 
-	public Caller(BeanBoxContext ctx, boolean required, Set<Object> history, Object result) {
+	/** @deprecated not used, circular dependency is checked by ResolveStack */
+	@Deprecated
+	public Set<Object> history;// NOSONAR
+
+	public Caller(BeanBoxContext ctx, boolean required, Object result) {
 		this.result = result;
 		this.ctx = ctx;
 		this.required = required;
+	}
+
+	/** @deprecated history is ignored, use Caller(ctx, required, result) */
+	@Deprecated
+	public Caller(BeanBoxContext ctx, boolean required, Set<Object> history, Object result) {
+		this(ctx, required, result);
 		this.history = history;
 	}
 
 	public <T> T getBean(Object target) {
-		return ctx.getBean(target, required, history);
+		return ctx.getBean(target, required);
 	}
 
 	public <T> T get(Class<T> targetClass) {
-		return ctx.getBean(targetClass, required, history);
+		return ctx.getBean(targetClass, required);
+	}
+
+	/**
+	 * Get the real object of a parameter BeanBox like constructor or method
+	 * parameters, a String value will be translated to the type of the BeanBox
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getParam(BeanBox param) {
+		return (T) BeanBoxContext.param2RealObjects(ctx, new BeanBox[] { param })[0];
 	}
 
 	public BeanBoxContext getCtx() {
@@ -55,10 +73,14 @@ public class Caller {
 		this.required = required;
 	}
 
+	/** @deprecated history is not used */
+	@Deprecated
 	public Set<Object> getHistory() {
 		return history;
 	}
 
+	/** @deprecated history is not used */
+	@Deprecated
 	public void setHistory(Set<Object> history) {
 		this.history = history;
 	}
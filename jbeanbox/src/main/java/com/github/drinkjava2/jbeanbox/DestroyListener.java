@@ -0,0 +1,36 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+/**
+ * DestroyListener is notified when BeanBoxContext close, for each singleton
+ * has a preDestroy method
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+public interface DestroyListener {
+
+	/**
+	 * Called after preDestroy method of a singleton finished, failed or timeout
+	 *
+	 * @param box
+	 *            The BeanBox of singleton
+	 * @param bean
+	 *            The singleton
+	 * @param nanos
+	 *            How long the preDestroy method used, 0 if not called
+	 * @param error
+	 *            null if success, exception thrown by preDestroy method, or a
+	 *            TimeoutException if not finished in time
+	 */
+	void destroyed(BeanBox box, Object bean, long nanos, Throwable error);
+
+}
@@ -0,0 +1,294 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.drinkjava2.asm5_0_3.ClassVisitor;
+import com.github.drinkjava2.asm5_0_3.Label;
+import com.github.drinkjava2.asm5_0_3.Type;
+import com.github.drinkjava2.cglib3_2_0.core.AbstractClassGenerator;
+import com.github.drinkjava2.cglib3_2_0.core.ClassEmitter;
+import com.github.drinkjava2.cglib3_2_0.core.CodeEmitter;
+import com.github.drinkjava2.cglib3_2_0.core.Constants;
+import com.github.drinkjava2.cglib3_2_0.core.EmitUtils;
+import com.github.drinkjava2.cglib3_2_0.core.ProcessSwitchCallback;
+import com.github.drinkjava2.cglib3_2_0.core.ReflectUtils;
+import com.github.drinkjava2.cglib3_2_0.core.Signature;
+import com.github.drinkjava2.cglib3_2_0.core.TypeUtils;
+
+/**
+ * FactoryUtils generate bytecode BeanFactory for BeanBox, generated factory
+ * class is put in same package of bean class, so besides public members it can
+ * also access package visible constructor, fields and methods directly.
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+public class FactoryUtils {// NOSONAR
+	private static final Type BEAN_FACTORY = Type.getType(BeanFactory.class);
+	private static final Type ILLEGAL_ARGUMENT_EXCEPTION = TypeUtils.parseType("IllegalArgumentException");
+	private static final Signature CREATE = TypeUtils.parseSignature("Object create(Object[])");
+	private static final Signature SET_FIELD = TypeUtils.parseSignature("void setField(int, Object, Object)");
+	private static final Signature INVOKE = TypeUtils.parseSignature("void invoke(int, Object, Object[])");
+
+	/**
+	 * Create a BeanFactory for given bean class
+	 *
+	 * @param beanClass
+	 *            The bean class
+	 * @param constructor
+	 *            The constructor to create bean, if null will use 0 parameter
+	 *            constructor
+	 * @param fields
+	 *            Fields need inject, factory's setField use same index
+	 * @param methods
+	 *            Methods need call, factory's invoke use same index
+	 * @return A BeanFactory or null if no any member can be directly accessed or
+	 *         failed to generate class, in this case should use reflection
+	 */
+	public static BeanFactory createBeanFactory(Class<?> beanClass, Constructor<?> constructor, Field[] fields,
+			Method[] methods) {
+		if (beanClass == null || beanClass.isInterface() || beanClass.getName().startsWith("java."))
+			return null;
+		Constructor<?> constr = constructor;
+		if (constr == null)
+			try {
+				constr = beanClass.getDeclaredConstructor();
+			} catch (Exception e) {// NOSONAR
+				constr = null;
+			}
+		if (constr != null && (Modifier.isAbstract(beanClass.getModifiers())
+				|| !canAccess(beanClass, constr.getDeclaringClass(), constr.getModifiers())
+				|| !canAccessTypes(beanClass, constr.getParameterTypes())))
+			constr = null;
+
+		boolean found = constr != null;
+		Field[] fs = new Field[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			Field f = fields[i];
+			int mod = f.getModifiers();
+			if (!Modifier.isStatic(mod) && !Modifier.isFinal(mod) && canAccess(beanClass, f.getDeclaringClass(), mod)
+					&& canAccessTypes(beanClass, f.getType())) {
+				fs[i] = f;
+				found = true;
+			}
+		}
+		Method[] ms = new Method[methods.length];
+		for (int i = 0; i < methods.length; i++) {
+			Method m = methods[i];
+			if (!Modifier.isStatic(m.getModifiers()) && !m.getDeclaringClass().isInterface()
+					&& canAccess(beanClass, m.getDeclaringClass(), m.getModifiers())
+					&& canAccessTypes(beanClass, m.getParameterTypes())) {
+				ms[i] = m;
+				found = true;
+			}
+		}
+		if (!found)
+			return null;
+		try {
+			BeanFactory factory = new Generator(beanClass, constr, fs, ms).create();
+			factory.createSupported = constr != null;
+			factory.fieldSupported = new boolean[fs.length];
+			for (int i = 0; i < fs.length; i++)
+				factory.fieldSupported[i] = fs[i] != null;
+			factory.methodSupported = new boolean[ms.length];
+			for (int i = 0; i < ms.length; i++)
+				factory.methodSupported[i] = ms[i] != null;
+			return factory;
+		} catch (Throwable e) {// NOSONAR failed to generate class, use reflection
+			return null;
+		}
+	}
+
+	/** Check if a member can be accessed by a class in bean class's package */
+	private static boolean canAccess(Class<?> beanClass, Class<?> declaringClass, int modifiers) {
+		if (Modifier.isPrivate(modifiers) || !canAccessTypes(beanClass, declaringClass))
+			return false;
+		return Modifier.isPublic(modifiers) || samePackage(beanClass, declaringClass);
+	}
+
+	/** Check if types can be accessed by a class in bean class's package */
+	private static boolean canAccessTypes(Class<?> beanClass, Class<?>... types) {
+		for (Class<?> type : types) {
+			Class<?> t = type;
+			while (t.isArray())
+				t = t.getComponentType();
+			if (!t.isPrimitive() && !Modifier.isPublic(t.getModifiers()) && !samePackage(beanClass, t))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean samePackage(Class<?> c1, Class<?> c2) {
+		if (c1.getClassLoader() != c2.getClassLoader())
+			return false;
+		String n1 = c1.getName();
+		String n2 = c2.getName();
+		int i1 = n1.lastIndexOf('.');
+		int i2 = n2.lastIndexOf('.');
+		return i1 == i2 && n1.regionMatches(0, n2, 0, i1 < 0 ? 0 : i1);
+	}
+
+	/** Generate a BeanFactory class for a bean class */
+	@SuppressWarnings("rawtypes")
+	static class Generator extends AbstractClassGenerator {
+		private static final Source SOURCE = new Source(BeanFactory.class.getName());
+		private final Class<?> beanClass;
+		private final Constructor<?> constructor;
+		private final Field[] fields;
+		private final Method[] methods;
+
+		Generator(Class<?> beanClass, Constructor<?> constructor, Field[] fields, Method[] methods) {
+			super(SOURCE);
+			this.beanClass = beanClass;
+			this.constructor = constructor;
+			this.fields = fields;
+			this.methods = methods;
+		}
+
+		public BeanFactory create() {
+			setNamePrefix(beanClass.getName());
+			StringBuilder key = new StringBuilder(beanClass.getName()).append('|').append(constructor);
+			for (Field f : fields)
+				key.append('|').append(f);
+			for (Method m : methods)
+				key.append('|').append(m);
+			return (BeanFactory) super.create(key.toString());
+		}
+
+		@Override
+		protected ClassLoader getDefaultClassLoader() {
+			return beanClass.getClassLoader();
+		}
+
+		@Override
+		protected ProtectionDomain getProtectionDomain() {
+			return ReflectUtils.getProtectionDomain(beanClass);
+		}
+
+		@Override
+		public void generateClass(ClassVisitor v) throws Exception {
+			ClassEmitter ce = new ClassEmitter(v);
+			ce.begin_class(Constants.V1_2, Constants.ACC_PUBLIC, getClassName(), BEAN_FACTORY, null,
+					Constants.SOURCE_FILE);
+			EmitUtils.null_constructor(ce);
+			if (constructor != null)
+				emitCreate(ce);
+			if (indexes(fields).length > 0)
+				emitSetField(ce);
+			if (indexes(methods).length > 0)
+				emitInvoke(ce);
+			ce.end_class();
+		}
+
+		private void emitCreate(ClassEmitter ce) {
+			CodeEmitter e = ce.begin_method(Constants.ACC_PUBLIC, CREATE, null);
+			Type beanType = Type.getType(beanClass);
+			Class<?>[] params = constructor.getParameterTypes();
+			e.new_instance(beanType);
+			e.dup();
+			for (int i = 0; i < params.length; i++) {
+				e.load_arg(0);
+				e.aaload(i);
+				e.unbox(Type.getType(params[i]));
+			}
+			e.invoke_constructor(beanType, ReflectUtils.getSignature(constructor));
+			e.return_value();
+			e.end_method();
+		}
+
+		private void emitSetField(ClassEmitter ce) {
+			final CodeEmitter e = ce.begin_method(Constants.ACC_PUBLIC, SET_FIELD, null);
+			e.load_arg(0);
+			e.process_switch(indexes(fields), new ProcessSwitchCallback() {
+				@Override
+				public void processCase(int key, Label end) {
+					Field f = fields[key];
+					Type owner = Type.getType(f.getDeclaringClass());
+					Type type = Type.getType(f.getType());
+					e.load_arg(1);
+					e.checkcast(owner);
+					e.load_arg(2);
+					e.unbox(type);
+					e.putfield(owner, f.getName(), type);
+					e.return_value();
+				}
+
+				@Override
+				public void processDefault() {
+					e.throw_exception(ILLEGAL_ARGUMENT_EXCEPTION, "Field index not supported");
+				}
+			});
+			e.end_method();
+		}
+
+		private void emitInvoke(ClassEmitter ce) {
+			final CodeEmitter e = ce.begin_method(Constants.ACC_PUBLIC, INVOKE, null);
+			e.load_arg(0);
+			e.process_switch(indexes(methods), new ProcessSwitchCallback() {
+				@Override
+				public void processCase(int key, Label end) {
+					Method m = methods[key];
+					Type owner = Type.getType(m.getDeclaringClass());
+					Class<?>[] params = m.getParameterTypes();
+					e.load_arg(1);
+					e.checkcast(owner);
+					for (int i = 0; i < params.length; i++) {
+						e.load_arg(2);
+						e.aaload(i);
+						e.unbox(Type.getType(params[i]));
+					}
+					e.invoke_virtual(owner, ReflectUtils.getSignature(m));
+					Type returnType = Type.getType(m.getReturnType());
+					if (returnType.getSize() == 2)
+						e.pop2();
+					else if (returnType.getSize() == 1)
+						e.pop();
+					e.return_value();
+				}
+
+				@Override
+				public void processDefault() {
+					e.throw_exception(ILLEGAL_ARGUMENT_EXCEPTION, "Method index not supported");
+				}
+			});
+			e.end_method();
+		}
+
+		private static int[] indexes(Object[] members) {
+			List<Integer> list = new ArrayList<Integer>();
+			for (int i = 0; i < members.length; i++)
+				if (members[i] != null)
+					list.add(i);
+			int[] result = new int[list.size()];
+			for (int i = 0; i < result.length; i++)
+				result[i] = list.get(i);
+			return result;
+		}
+
+		@Override
+		protected Object firstInstance(Class type) throws Exception {
+			return type.newInstance();
+		}
+
+		@Override
+		protected Object nextInstance(Object instance) throws Exception {
+			return instance.getClass().newInstance();
+		}
+	}
+
+}
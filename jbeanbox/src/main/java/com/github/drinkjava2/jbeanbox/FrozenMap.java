@@ -0,0 +1,153 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * FrozenMap is used by frozen BeanBoxContext, entries exist when frozen are
+ * stored in an open addressing table which is never changed, so looking up
+ * them need not volatile reads and locks of ConcurrentHashMap. Keys are
+ * compared by identity first (classes and BeanBoxes), then by equals (names).
+ * If not read only, entries added later (singletons created after frozen) are
+ * stored in the original map, which still has all entries so other users of
+ * it see same content. If frozen with no entry, table is not probed and
+ * lookups go to the original map directly.
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+@SuppressWarnings("unchecked")
+final class FrozenMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {// NOSONAR
+	private final Object[] table; // key at 2*i, value at 2*i+1
+	private final int mask;
+	private final ConcurrentMap<K, V> overflow; // null if read only
+	private final boolean empty; // if true, skip probing table
+
+	FrozenMap(Map<K, V> source, boolean readOnly) {
+		Map<K, V> entries = new LinkedHashMap<K, V>(source); // a stable copy
+		int capacity = 2;
+		while (capacity < entries.size() * 2) // keep load factor <= 0.5
+			capacity <<= 1;
+		table = new Object[capacity * 2];
+		mask = capacity - 1;
+		empty = entries.isEmpty();
+		for (Entry<K, V> entry : entries.entrySet()) {
+			int i = indexOf(entry.getKey());
+			while (table[i * 2] != null)
+				i = (i + 1) & mask;
+			table[i * 2] = entry.getKey();
+			table[i * 2 + 1] = entry.getValue();
+		}
+		if (readOnly)
+			overflow = null;
+		else if (source instanceof ConcurrentMap)
+			overflow = (ConcurrentMap<K, V>) source;
+		else
+			overflow = new ConcurrentHashMap<K, V>(source);
+	}
+
+	private int indexOf(Object key) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/** Return value of key in table, null if not found */
+	private V find(Object key) {
+		if (key == null)
+			return null;
+		for (int i = indexOf(key);; i = (i + 1) & mask) {
+			Object k = table[i * 2];
+			if (k == null)
+				return null;
+			if (k == key || k.equals(key))
+				return (V) table[i * 2 + 1];
+		}
+	}
+
+	private ConcurrentMap<K, V> writable(Object key) {
+		if (overflow == null || find(key) != null)
+			throw new UnsupportedOperationException("Can not change a frozen entry: " + key);
+		return overflow;
+	}
+
+	@Override
+	public V get(Object key) {
+		V value = empty ? null : find(key);
+		if (value != null || overflow == null)
+			return value;
+		return overflow.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public V put(K key, V value) {
+		return writable(key).put(key, value);
+	}
+
+	@Override
+	public V putIfAbsent(K key, V value) {
+		V existed = find(key);
+		return existed != null ? existed : writable(key).putIfAbsent(key, value);
+	}
+
+	@Override
+	public V remove(Object key) {
+		return writable(key).remove(key);
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		return writable(key).remove(key, value);
+	}
+
+	@Override
+	public boolean replace(K key, V oldValue, V newValue) {
+		return writable(key).replace(key, oldValue, newValue);
+	}
+
+	@Override
+	public V replace(K key, V value) {
+		return writable(key).replace(key, value);
+	}
+
+	/** Frozen entries may be shared by forks, can not be cleared */
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("Can not clear a FrozenMap");
+	}
+
+	@Override
+	public int size() {
+		return entrySet().size();
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		if (overflow != null)
+			return Collections.unmodifiableMap(overflow).entrySet(); // overflow has all entries
+		Map<K, V> result = new LinkedHashMap<K, V>();
+		for (int i = 0; i < table.length; i += 2)
+			if (table[i] != null)
+				result.put((K) table[i], (V) table[i + 1]);
+		return Collections.unmodifiableMap(result).entrySet();
+	}
+
+}
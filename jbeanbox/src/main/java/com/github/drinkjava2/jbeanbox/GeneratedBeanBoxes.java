@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+
+/**
+ * GeneratedBeanBoxes find BeanBox classes generated at compile time by jBeanBox
+ * annotation processor. Each line of index file is like
+ * "com.foo.Bar=com.foo.Bar$$BeanBox" or "com.foo.Bar=com.foo.Bar$$BeanBox,jsr",
+ * "jsr" means JSR or Spring annotations used in Bar.
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+final class GeneratedBeanBoxes {
+	static final String INDEX_FILE = "META-INF/jbeanbox/beanbox.index";
+	static final String JSR_FLAG = "jsr";
+
+	private static final Map<ClassLoader, Map<String, String>> indexes = Collections
+			.synchronizedMap(new WeakHashMap<ClassLoader, Map<String, String>>());
+
+	private GeneratedBeanBoxes() {
+	}
+
+	/**
+	 * Create generated BeanBox for given class, return null if not found or it use
+	 * JSR or Spring annotations but allowSpringJsrAnno is false
+	 */
+	static BeanBox create(Class<?> clazz, boolean allowSpringJsrAnno) {
+		ClassLoader loader = clazz.getClassLoader();
+		if (loader == null)
+			return null;
+		String entry = getIndex(loader).get(clazz.getName());
+		if (entry == null)
+			return null;
+		String[] items = entry.split(",");
+		if (items.length > 1 && JSR_FLAG.equals(items[1].trim()) && !allowSpringJsrAnno)
+			return null;
+		try {
+			BeanBox box = (BeanBox) Class.forName(items[0].trim(), true, loader).newInstance();
+			if (box.singleton == null)
+				box.singleton = true;
+			return box;
+		} catch (Exception e) {
+			return BeanBoxException.throwEX("Fail to create generated BeanBox for " + clazz, e);
+		}
+	}
+
+	/** Load and merge all index files can be found by given ClassLoader */
+	private static Map<String, String> getIndex(ClassLoader loader) {
+		Map<String, String> index = indexes.get(loader);
+		if (index != null)
+			return index;
+		index = new HashMap<String, String>();
+		try {
+			Enumeration<URL> urls = loader.getResources(INDEX_FILE);
+			while (urls.hasMoreElements()) {
+				Properties prop = new Properties();
+				InputStream in = urls.nextElement().openStream();
+				try {
+					prop.load(in);
+				} finally {
+					in.close();
+				}
+				for (String key : prop.stringPropertyNames())
+					index.put(key, prop.getProperty(key));
+			}
+		} catch (Exception e) {
+			BeanBoxException.throwEX("Fail to load " + INDEX_FILE, e);
+		}
+		indexes.put(loader, index);
+		return index;
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * NameMatcher is a compiled name pattern used by AOP rules, a pattern is only
+ * compiled once, each * matches any characters (include empty), for example
+ * "com.foo.*Service*" matches "com.foo.UserService" and "com.foo.OrderService2"
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+class NameMatcher {// NOSONAR
+	private static final Map<String, NameMatcher> cache = new ConcurrentHashMap<String, NameMatcher>(); // NOSONAR
+
+	private static final NameMatcher NONE = new NameMatcher(null, null, null, null);
+
+	private final String exact; // if not null, no * in pattern
+	private final String prefix; // text before first *
+	private final String suffix; // text after last *
+	private final String[] middles; // texts between *
+
+	private NameMatcher(String exact, String prefix, String suffix, String[] middles) {
+		this.exact = exact;
+		this.prefix = prefix;
+		this.suffix = suffix;
+		this.middles = middles;
+	}
+
+	/** Return the compiled matcher of a pattern, null or empty pattern match nothing */
+	static NameMatcher of(String pattern) {
+		if (pattern == null || pattern.length() == 0)
+			return NONE;
+		NameMatcher result = cache.get(pattern);
+		if (result == null) {
+			result = compile(pattern);
+			cache.put(pattern, result);
+		}
+		return result;
+	}
+
+	private static NameMatcher compile(String pattern) {
+		int first = pattern.indexOf('*');
+		if (first < 0)
+			return new NameMatcher(pattern, null, null, null);
+		int last = pattern.lastIndexOf('*');
+		String[] middles = new String[0];
+		if (first < last) {
+			String[] parts = pattern.substring(first + 1, last).split("\\*");
+			int count = 0;
+			for (String part : parts)
+				if (part.length() > 0)
+					parts[count++] = part;
+			middles = new String[count];
+			System.arraycopy(parts, 0, middles, 0, count);
+		}
+		return new NameMatcher(null, pattern.substring(0, first), pattern.substring(last + 1), middles);
+	}
+
+	boolean matches(String name) {
+		if (name == null || name.length() == 0 || this == NONE)
+			return false;
+		if (exact != null)
+			return exact.equals(name);
+		int end = name.length() - suffix.length();
+		if (end < prefix.length() || !name.startsWith(prefix) || !name.endsWith(suffix))
+			return false;
+		int pos = prefix.length();
+		for (String middle : middles) {
+			pos = name.indexOf(middle, pos);
+			if (pos < 0 || pos + middle.length() > end)
+				return false;
+			pos += middle.length();
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * OverlayMap is a map only store changed entries, other entries are read from
+ * a base map which should not be changed, it is used as bindCache of a forked
+ * BeanBoxContext. Entries of base map can be overridden but can not be removed.
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+class OverlayMap<K, V> extends AbstractMap<K, V> {// NOSONAR
+	private final Map<K, V> base;
+	private final Map<K, V> delta = new ConcurrentHashMap<K, V>();
+
+	OverlayMap(Map<K, V> base) {
+		this.base = base;
+	}
+
+	@Override
+	public V get(Object key) {
+		V value = delta.get(key);
+		return value != null ? value : base.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return delta.containsKey(key) || base.containsKey(key);
+	}
+
+	@Override
+	public V put(K key, V value) {
+		V old = get(key);
+		delta.put(key, value);
+		return old;
+	}
+
+	/** Only remove overridden entry, base entry can not be removed */
+	@Override
+	public V remove(Object key) {
+		return delta.remove(key);
+	}
+
+	/** Only clear overridden entries */
+	@Override
+	public void clear() {
+		delta.clear();
+	}
+
+	/** Return a snapshot of merged entries */
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		Map<K, V> merged = new LinkedHashMap<K, V>(base);
+		merged.putAll(delta);
+		return Collections.unmodifiableMap(merged).entrySet();
+	}
+
+}
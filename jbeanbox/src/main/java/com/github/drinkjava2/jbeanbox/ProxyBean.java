@@ -10,10 +10,14 @@
 package com.github.drinkjava2.jbeanbox;
 
 import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.aopalliance.intercept.MethodInvocation;
 
@@ -22,84 +26,200 @@ import com.github.drinkjava2.cglib3_2_0.proxy.MethodInterceptor;
 import com.github.drinkjava2.cglib3_2_0.proxy.MethodProxy;
 
 /**
- * ProxyBean to build a Invocation, Invocation call next invocation...
+ * ProxyBean to build a Invocation, Invocation call next invocation... it's a
+ * cglib callback of a sub-class proxy, or a JDK InvocationHandler delegate to a
+ * target bean
  * 
  * @author Yong Zhu
  * @since 2.4
  *
  */
 @SuppressWarnings("all")
-class ProxyBean implements MethodInterceptor, Callback {
+class ProxyBean implements MethodInterceptor, Callback, InvocationHandler {
+	private static final org.aopalliance.intercept.MethodInterceptor[] NO_INTERS = new org.aopalliance.intercept.MethodInterceptor[0];
+
 	protected Object[] box_ctx;
 
+	private volatile Chains chains = new Chains(-1, null); // cached interceptors of each method
+
+	/** Interceptors of methods, only valid for given plan stamp and BeanBox plan */
+	static final class Chains {
+		final int stamp;
+		final BeanBoxPlan plan;
+		final Map<Method, org.aopalliance.intercept.MethodInterceptor[]> map = new ConcurrentHashMap<Method, org.aopalliance.intercept.MethodInterceptor[]>();
+
+		Chains(int stamp, BeanBoxPlan plan) {
+			this.stamp = stamp;
+			this.plan = plan;
+		}
+	}
+
+	protected Object target; // target bean of JDK proxy, null for cglib proxy
+
 	protected ProxyBean(BeanBox box, BeanBoxContext ctx) {
 		box_ctx = new Object[] { box, ctx };
 	}
 
+	protected ProxyBean(BeanBox box, BeanBoxContext ctx, Object target) {
+		this(box, ctx);
+		this.target = target;
+	}
+
 	@Override
 	public Object intercept(Object obj, Method m, Object[] args, MethodProxy mprxy) throws Throwable {
+		org.aopalliance.intercept.MethodInterceptor[] inters = getChain(obj, m);
+		if (inters.length == 0)
+			return mprxy.invokeSuper(obj, args);
+		return new MethodInvoc(obj, m, args, mprxy, inters, -1).call();
+	}
 
-		List<Object> allInters = new ArrayList<Object>();
+	@Override
+	public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+		org.aopalliance.intercept.MethodInterceptor[] inters = getChain(target, m);
+		if (inters.length == 0)
+			return invokeTarget(target, m, args);
+		return new MethodInvoc(target, m, args, null, inters, -1).call();
+	}
 
-		BeanBox box = (BeanBox) box_ctx[0];// box method aops
+	private org.aopalliance.intercept.MethodInterceptor[] getChain(Object obj, Method m) {
+		BeanBox box = (BeanBox) box_ctx[0];
 		BeanBoxContext ctx = (BeanBoxContext) box_ctx[1];
-		if (box.getMethodAops() != null) {
+		Chains c = chains;
+		BeanBoxPlan plan = ctx.getPlan(box);
+		if (c.stamp != ctx.root().planStamp || c.plan != plan) { // AOP rules or box changed
+			c = new Chains(ctx.root().planStamp, plan);
+			chains = c;
+		}
+		org.aopalliance.intercept.MethodInterceptor[] inters = c.map.get(m);
+		if (inters == null) {
+			if (target == null)
+				inters = buildChain(obj, m, box, ctx);
+			else { // interface method, find AOPs by method of target class
+				ReflectionUtils.makeAccessible(m);
+				Method targetMethod = ReflectionUtils.findMethod(obj.getClass(), m.getName(), m.getParameterTypes());
+				inters = buildChain(obj, targetMethod == null ? m : targetMethod, box, ctx);
+			}
+			c.map.put(m, inters);
+		}
+		return inters;
+	}
+
+	private static Object invokeTarget(Object target, Method m, Object[] args) throws Throwable {
+		try {
+			return m.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getTargetException();
+		}
+	}
+
+	/** Find all interceptors of a method, in order of method, bean, context AOPs */
+	private static org.aopalliance.intercept.MethodInterceptor[] buildChain(Object obj, Method m, BeanBox box, BeanBoxContext ctx) {
+		List<Object> allInters = new ArrayList<Object>();
+		if (box.getMethodAops() != null) {// box method aops
 			List<Object> inters = box.getMethodAops().get(m);
 			if (inters != null && !inters.isEmpty())
 				allInters.addAll(inters);
 		}
 
-		if (box.getAopRules() != null) // box methods aops, need add cache in future
+		if (box.getAopRules() != null) // box methods aops
 			for (Object[] entry : box.getAopRules()) {
-				if (BeanBoxUtils.nameMatch((String) entry[1], m.getName()))
+				if (NameMatcher.of((String) entry[1]).matches(m.getName()))
 					allInters.add(entry[0]);
 			}
 
-		if (ctx.getAopRules() != null) {// BeanBoxContext aops, need add cache in future
-			String thisClassName = obj.getClass().getName();
+		BitSet matched = ctx.matchAopRules(obj.getClass().getName()); // BeanBoxContext aops
+		for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+			Object[] aops = ctx.getAopRules().get(i);
+			if (NameMatcher.of((String) aops[2]).matches(m.getName()))
+				allInters.add(aops[0]);
+		}
+		if (allInters.isEmpty())
+			return NO_INTERS;
+		org.aopalliance.intercept.MethodInterceptor[] result = new org.aopalliance.intercept.MethodInterceptor[allInters.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = resolve(allInters.get(i), ctx);
+		return result;
+	}
 
-			for (Object[] aops : ctx.getAopRules()) {
-				String classReg = (String) aops[1];
-				if (BeanBoxUtils.nameMatch(classReg, thisClassName)) {
-					String methodRegex = (String) aops[2];
-					if (BeanBoxUtils.nameMatch(methodRegex, m.getName()))
-						allInters.add(aops[0]);
-				}
-			}
+	/** inter can be AOP class, AOP instance, BeanBox class, BeanBox instance */
+	private static org.aopalliance.intercept.MethodInterceptor resolve(Object inter, BeanBoxContext ctx) {
+		if (ctx.prototypeAopPerCall) {
+			BeanBox box = ctx.findBeanBox(inter);
+			if (box != null && !box.isSingleton())
+				return new PrototypeInterceptor(inter, ctx);
 		}
+		org.aopalliance.intercept.MethodInterceptor result = ctx.getBean(inter);
+		BeanBoxException.assureNotNull(result);
+		return result;
+	}
 
-		if (allInters.isEmpty())
-			return mprxy.invokeSuper(obj, args);
-		// inters can be AOP class, AOP instance, BeanBox class, BeanBox instance
-		org.aopalliance.intercept.MethodInterceptor inter = ctx.getBean(allInters.get(0));
-		BeanBoxException.assureNotNull(inter);
-		return inter.invoke(new MethodInvoc(obj, m, args, mprxy, allInters, ctx, 1));
+	/** Get a new prototype interceptor from context for each call */
+	static final class PrototypeInterceptor implements org.aopalliance.intercept.MethodInterceptor {
+		private final Object inter;
+		private final BeanBoxContext ctx;
+
+		PrototypeInterceptor(Object inter, BeanBoxContext ctx) {
+			this.inter = inter;
+			this.ctx = ctx;
+		}
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			org.aopalliance.intercept.MethodInterceptor result = ctx.getBean(inter);
+			BeanBoxException.assureNotNull(result);
+			return result.invoke(invocation);
+		}
 	}
 
+	/**
+	 * One MethodInvoc per call, it is a cursor moves forward from the calling
+	 * interceptor, so an interceptor can call proceed() again (e.g. retry). After
+	 * the call returned it can not proceed, an interceptor proceeds later (e.g.
+	 * async) should keep a copy() or AopUtils.copyInvocation()
+	 */
 	//@formatter:off
 	public static class MethodInvoc implements MethodInvocation {// AOP alliance required
 		private final Object obj;
 		private final Method m;
 		private final Object[] args;
 		private final MethodProxy mprxy;
-		private final List<Object> inters;
-		private final BeanBoxContext ctx;
-		private int count;
+		private final org.aopalliance.intercept.MethodInterceptor[] inters;
+		private int active; // index of running interceptor, -1 if none
+		private boolean returned; // the advised call returned
 
-		protected MethodInvoc(Object obj, Method m, Object[] args, MethodProxy mprxy, List<Object> inters, BeanBoxContext ctx,
-				int count) {
+		protected MethodInvoc(Object obj, Method m, Object[] args, MethodProxy mprxy, org.aopalliance.intercept.MethodInterceptor[] inters,
+				int active) {
 			this.obj = obj;	this.m = m;	this.args = args;	this.mprxy = mprxy;
-			this.inters = inters;	this.ctx = ctx;	this.count = count;
+			this.inters = inters;	this.active = active;
+		}
+
+		/** Proceed the advised call, after that this MethodInvoc can not proceed */
+		Object call() throws Throwable {
+			try {
+				return proceed();
+			} finally {
+				returned = true;
+			}
 		}
  
 		public Object proceed() throws Throwable {
-			if (count <= (inters.size() - 1)) { 
-				org.aopalliance.intercept.MethodInterceptor inter = ctx.getBean(inters.get(count));
-			    return inter.invoke(new MethodInvoc(obj, m, args, mprxy, inters, ctx, count + 1));
+			if (returned)
+				BeanBoxException.throwEX("Advised call already returned, keep a copy() of invocation to proceed later");
+			int caller = active;
+			int next = caller + 1;
+			if (next >= inters.length)
+				return mprxy != null ? mprxy.invokeSuper(obj, args) : invokeTarget(obj, m, args);
+			active = next;
+			try {
+				return inters[next].invoke(this);
+			} finally {
+				active = caller; // the caller is running again
 			}
-			return mprxy.invokeSuper(obj, args);
 		} 
-		
+
+		/** Return a copy always proceed from current running interceptor, can be kept after call returned */
+		public MethodInvoc copy() { return new MethodInvoc(obj, m, args, mprxy, inters, active); }
+
 		public final Object getThis() { return obj; }
  
 		public final AccessibleObject getStaticPart() { return m; }
@@ -109,4 +229,4 @@ class ProxyBean implements MethodInterceptor, Callback {
 		public final Object[] getArguments() { return this.args != null ? this.args : new Object[0]; }
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.drinkjava2.asm5_0_3.ClassReader;
+import com.github.drinkjava2.cglib3_2_0.core.AbstractClassGenerator;
+import com.github.drinkjava2.cglib3_2_0.core.ClassGenerator;
+import com.github.drinkjava2.cglib3_2_0.core.ClassNameReader;
+import com.github.drinkjava2.cglib3_2_0.core.DefaultGeneratorStrategy;
+import com.github.drinkjava2.cglib3_2_0.core.GeneratorStrategy;
+import com.github.drinkjava2.cglib3_2_0.proxy.Enhancer;
+
+/**
+ * ProxyClassCache is a cglib GeneratorStrategy save bytes of generated proxy
+ * class to a directory, next start the bytes are loaded from file instead of
+ * generated again. Each file store the description of proxy (bean class, AOP
+ * method names and methods) and size and last modified time of class files of
+ * bean class, its super classes and cglib, if any of them changed the proxy
+ * class is generated again.
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+final class ProxyClassCache implements GeneratorStrategy {
+	private static final int MAGIC = 0x4A425058; // "JBPX"
+	private static final int VERSION = 1;
+
+	private final File file;
+	private final String description;
+	private final List<Class<?>> classes = new ArrayList<Class<?>>();
+
+	ProxyClassCache(File dir, Class<?> clazz, String description) {
+		this.description = description;
+		this.file = new File(dir, clazz.getName() + "$$" + Integer.toHexString(description.hashCode()) + ".proxy");
+		for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass())
+			classes.add(c);
+		classes.add(Enhancer.class);
+	}
+
+	@Override
+	public byte[] generate(ClassGenerator cg) throws Exception {
+		byte[] b = load((AbstractClassGenerator) cg);
+		if (b != null)
+			return b;
+		b = DefaultGeneratorStrategy.INSTANCE.generate(cg);
+		save(b);
+		return b;
+	}
+
+	/**
+	 * Return saved bytes, null if not found, changed or its class name used. The
+	 * name is reserved in generator's ClassLoader so later generated classes not
+	 * use it
+	 */
+	private byte[] load(AbstractClassGenerator gen) {
+		if (!file.isFile())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION || !description.equals(readString(in)))
+					return null;
+				if (in.readInt() != classes.size())
+					return null;
+				for (Class<?> c : classes) {
+					long[] stamp = BeanBoxSnapshot.stamp(c);
+					if (!c.getName().equals(in.readUTF()) || stamp == null || stamp[0] != in.readLong()
+							|| stamp[1] != in.readLong())
+						return null;
+				}
+				byte[] b = new byte[in.readInt()];
+				in.readFully(b);
+				String className = ClassNameReader.getClassName(new ClassReader(b));
+				if (!gen.reserveClassName(className))
+					return null; // name used by other generated class
+				try {
+					Class.forName(className, false, gen.getClassLoader());
+					return null; // name used by other proxy class
+				} catch (ClassNotFoundException e) {// NOSONAR
+					return b;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {// NOSONAR broken file, generate it again
+			return null;
+		}
+	}
+
+	private void save(byte[] b) {
+		File temp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				writeString(out, description);
+				out.writeInt(classes.size());
+				for (Class<?> c : classes) {
+					long[] stamp = BeanBoxSnapshot.stamp(c);
+					if (stamp == null)
+						return; // no class file, can not check it next time
+					out.writeUTF(c.getName());
+					out.writeLong(stamp[0]);
+					out.writeLong(stamp[1]);
+				}
+				out.writeInt(b.length);
+				out.write(b);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				file.delete();// NOSONAR
+				temp.renameTo(file);// NOSONAR
+			}
+		} catch (IOException e) {// NOSONAR cache is optional
+		} finally {
+			temp.delete();// NOSONAR
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.util.Arrays;
+
+/**
+ * ResolveStack is a per-thread stack of BeanBoxes being built, used to find
+ * circular dependency. It's array based and compare by identity, push and pop
+ * do not create any object, so getBean create no garbage for it.
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+final class ResolveStack {
+	static final int MAX_DEPTH = 1000; // deeper than this be treated as error
+
+	private static final ThreadLocal<ResolveStack> STACKS = new ThreadLocal<ResolveStack>() {
+		@Override
+		protected ResolveStack initialValue() {
+			return new ResolveStack();
+		}
+	};
+
+	private Object[] items = new Object[16];
+	private int size = 0;
+
+	/** Return the ResolveStack of current thread */
+	static ResolveStack get() {
+		return STACKS.get();
+	}
+
+	boolean contains(Object item) {
+		for (int i = size - 1; i >= 0; i--)
+			if (items[i] == item)
+				return true;
+		return false;
+	}
+
+	void push(Object item) {
+		if (size == items.length) {
+			if (size >= MAX_DEPTH)
+				BeanBoxException.throwEX("Fail to build bean, dependency deeper than " + MAX_DEPTH + " found on: " + item);
+			items = Arrays.copyOf(items, Math.min(size * 2, MAX_DEPTH));
+		}
+		items[size++] = item;
+	}
+
+	void pop() {
+		items[--size] = null;
+	}
+
+	int size() {
+		return size;
+	}
+
+}
@@ -0,0 +1,30 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.util.Map;
+
+/**
+ * Scope is a custom scope registered by BeanBoxContext's registerScope method,
+ * it tells where to cache beans of its scope, for example a HTTP session scope
+ * return a map stored in current session
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+public interface Scope {
+
+	/**
+	 * Return the map to cache beans of this scope, null if this scope is not
+	 * active now. Use ConcurrentMap if beans can be created by many threads.
+	 */
+	Map<BeanBox, Object> getBeans(BeanBoxContext ctx);
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SingletonCreation is the placeholder of a singleton being built, only the
+ * owner thread build the singleton, other threads wait on it, so a singleton
+ * be created only once even many threads ask for it at same time.
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+final class SingletonCreation {
+	final Thread owner = Thread.currentThread();
+	final CountDownLatch latch = new CountDownLatch(1);
+	volatile Object early; // created but not fully built bean, for circular dependency use
+
+	/** Owner thread call it when building finished or failed */
+	void done() {
+		latch.countDown();
+	}
+
+	/**
+	 * Current thread wait until owner thread finished building, if owner thread is
+	 * (directly or indirectly) waiting current thread, return the early bean to
+	 * break the dead lock, or throw a BeanBoxException if no early bean
+	 *
+	 * @param waiting
+	 *            Which creation each waiting thread is waiting for, shared by
+	 *            all threads of a BeanBoxContext
+	 * @return null if owner thread finished, or the early bean
+	 */
+	Object await(Map<Thread, SingletonCreation> waiting, BeanBox box) {
+		Thread me = Thread.currentThread();
+		waiting.put(me, this);
+		try {
+			while (true) {// NOSONAR
+				if (isWaiting(waiting, me)) { // dead lock found
+					Object bean = early;
+					if (bean != null)
+						return bean;
+					BeanBoxException.throwEX("Fail to build bean, circular dependency found between threads on: " + box);
+				}
+				if (latch.await(50, TimeUnit.MILLISECONDS))
+					return null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return BeanBoxException.throwEX(e);
+		} finally {
+			waiting.remove(me);
+		}
+	}
+
+	/** Check if owner thread is directly or indirectly waiting given thread */
+	private boolean isWaiting(Map<Thread, SingletonCreation> waiting, Thread thread) {
+		SingletonCreation c = this;
+		for (int i = 0; c != null && i <= waiting.size(); i++) {
+			if (c.owner == thread)
+				return true;
+			c = waiting.get(c.owner);
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,435 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * SingletonScheduler find all singletons of a BeanBoxContext and the
+ * dependencies between them from constructorParams, fieldInjects and
+ * methodInjects, then build them with an Executor, a singleton is only
+ * submitted after all singletons it depends on are built, so independent
+ * singletons are built in parallel. Singletons in dependency cycles are built
+ * at last in calling thread. It also destroy built singletons in reverse order,
+ * a singleton is destroyed after all singletons depend on it are destroyed.
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+final class SingletonScheduler {
+	private final BeanBoxContext ctx;
+	private final Map<BeanBox, Node> nodes = new IdentityHashMap<BeanBox, Node>();
+	private final List<Node> nodeList = new ArrayList<Node>(); // keep found order
+	private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+	private DestroyListener listener;
+	private long deadline; // System.nanoTime() to stop destroy, 0 means no limit
+	private volatile boolean stopped; // if true, no more destroy submitted
+	private boolean builtOnly; // if true, only known BeanBoxes are visited, no metadata created
+	private boolean validating; // if true, prototypes are also visited to check required targets
+	private final List<String> missing = new ArrayList<String>(); // required inject targets not found
+
+	static final class Node {
+		final BeanBox box;
+		boolean required;
+		final Set<Node> dependsOn = new LinkedHashSet<Node>();
+		final Set<Node> constructorDeps = new LinkedHashSet<Node>(); // needed before constructed
+		final List<Node> dependents = new ArrayList<Node>();
+		final AtomicInteger remaining = new AtomicInteger();
+		final AtomicBoolean finished = new AtomicBoolean(); // destroy finished or timeout
+		volatile long start; // System.nanoTime() when destroy started, 0 if not started
+
+		Node(BeanBox box, boolean required) {
+			this.box = box;
+			this.required = required;
+		}
+	}
+
+	SingletonScheduler(BeanBoxContext ctx) {
+		this.ctx = ctx;
+	}
+
+	/** Find all singletons and dependencies between them */
+	SingletonScheduler discover() {
+		for (BeanBox box : new ArrayList<BeanBox>(ctx.beanBoxMetaCache.values()))
+			addRoot(box);
+		for (Object target : new ArrayList<Object>(ctx.bindCache.values()))
+			addRoot(ctx.findBeanBox(target));
+		collectAll();
+		return this;
+	}
+
+	/** Find built singletons and dependencies between them */
+	SingletonScheduler discoverBuilt() {
+		builtOnly = true;
+		for (Object key : new ArrayList<Object>(ctx.singletonCache.keySet()))
+			if (key instanceof BeanBox)
+				node((BeanBox) key, true);
+		collectAll();
+		return this;
+	}
+
+	private void collectAll() {
+		for (int i = 0; i < nodeList.size(); i++) { // nodeList grows when new singleton found
+			Node node = nodeList.get(i);
+			collectDependencies(node, node.box, new IdentityHashMap<BeanBox, Boolean>(), true);
+		}
+	}
+
+	private void addRoot(BeanBox box) {
+		if (box != null && (validating || box.getSingletonId() != null) && canBuild(box))
+			node(box, true);
+	}
+
+	private Node node(BeanBox box, boolean required) {
+		Node node = nodes.get(box);
+		if (node == null) {
+			node = new Node(box, required);
+			nodes.put(box, node);
+			nodeList.add(node);
+		} else if (required)
+			node.required = true;
+		return node;
+	}
+
+	/** Only concrete class or create method can build a bean */
+	private static boolean canBuild(BeanBox box) {
+		if (box.getCreateMethod() != null || box.getConstructor() != null)
+			return true;
+		Class<?> c = box.getBeanClass();
+		return c != null && EMPTY.class != c && !c.isInterface() && !c.isPrimitive() && !c.isArray()
+				&& !Modifier.isAbstract(c.getModifiers());
+	}
+
+	/**
+	 * Find singletons a box depends on, dependencies of prototype are included.
+	 * If byConstructor is true, box is built in constructor of owner
+	 */
+	private void collectDependencies(Node owner, BeanBox box, Map<BeanBox, Boolean> visited,
+			boolean byConstructor) {
+		Boolean visitedBy = visited.get(box);
+		if (visitedBy != null && (visitedBy || !byConstructor))
+			return;
+		visited.put(box, byConstructor);
+		List<BeanBox> params = new ArrayList<BeanBox>();
+		if (box.getConstructorParams() != null)
+			Collections.addAll(params, box.getConstructorParams());
+		int constructorParams = params.size();
+		if (box.getFieldInjects() != null)
+			params.addAll(box.getFieldInjects().values());
+		if (box.getMethodInjects() != null)
+			for (BeanBox[] boxes : box.getMethodInjects().values())
+				if (boxes != null)
+					Collections.addAll(params, boxes);
+		for (int i = 0; i < params.size(); i++) {
+			BeanBox param = params.get(i);
+			boolean inConstructor = byConstructor && i < constructorParams;
+			BeanBox dep = param == null || param.isPureValue() ? null : ctx.findBeanBox(injectTarget(param), !builtOnly);
+			if (dep == null && param != null && !param.isPureValue() && param.isRequired()
+					&& !isPureValue(injectTarget(param)))
+				missing.add(injectTarget(param) + " required by " + box);
+			if (dep == owner.box && inConstructor)
+				owner.constructorDeps.add(owner);
+			if (dep == null || dep == owner.box || !canBuild(dep))
+				continue;
+			if (dep.getSingletonId() != null) {
+				Node depNode = node(dep, param.isRequired());
+				owner.dependsOn.add(depNode);
+				if (inConstructor)
+					owner.constructorDeps.add(depNode);
+			} else
+				collectDependencies(owner, dep, visited, inConstructor);
+		}
+	}
+
+	/**
+	 * Find all beans and throw exception if a required inject target of them can
+	 * not be found, or singletons depend on each other only by constructors, they
+	 * can never be built because no early reference exists before constructed
+	 */
+	void validate() {
+		validating = true;
+		discover();
+		if (!missing.isEmpty())
+			BeanBoxException.throwEX("Required inject target not found: " + missing.get(0));
+		Map<Node, Boolean> checked = new IdentityHashMap<Node, Boolean>(); // false if being checked
+		for (Node node : nodeList)
+			checkConstructorCycle(node, checked);
+	}
+
+	private static void checkConstructorCycle(Node node, Map<Node, Boolean> checked) {
+		Boolean done = checked.get(node);
+		if (done != null) {
+			if (!done)
+				BeanBoxException.throwEX("Circular constructor dependency found on: " + node.box);
+			return;
+		}
+		checked.put(node, false);
+		for (Node dep : node.constructorDeps)
+			checkConstructorCycle(dep, checked);
+		checked.put(node, true);
+	}
+
+	/** Return true if target is bound to a pure value BeanBox */
+	private boolean isPureValue(Object target) {
+		Object t = ctx.resolveTarget(target);
+		for (int i = 0; i < 100 && t instanceof BeanBox; i++) {// NOSONAR same limit as findBeanBox
+			BeanBox box = (BeanBox) t;
+			if (box.isPureValue() || box.getTarget() == null)
+				return box.isPureValue();
+			t = ctx.resolveTarget(box.getTarget());
+		}
+		return false;
+	}
+
+	/** Same as BeanBoxPlan, EMPTY target means inject by type */
+	private static Object injectTarget(BeanBox param) {
+		if (param.getTarget() == null)
+			return param;
+		if (EMPTY.class == param.getTarget() && param.getType() != null)
+			return param.getType();
+		return param.getTarget();
+	}
+
+	private void link() {
+		for (Node node : nodeList)
+			for (Node dep : node.dependsOn)
+				dep.dependents.add(node);
+	}
+
+	/** Build all found singletons, if executor is null build them in calling thread */
+	void run(final Executor executor) {
+		link();
+
+		// Kahn's algorithm to know how many nodes can be scheduled, others are in cycle
+		Map<Node, Integer> inDegree = new IdentityHashMap<Node, Integer>();
+		List<Node> ready = new ArrayList<Node>();
+		for (Node node : nodeList) {
+			inDegree.put(node, node.dependsOn.size());
+			node.remaining.set(node.dependsOn.size());
+			if (node.dependsOn.isEmpty())
+				ready.add(node);
+		}
+		int schedulable = 0;
+		for (int i = 0; i < ready.size(); i++, schedulable++)
+			for (Node dependent : ready.get(i).dependents) {
+				int degree = inDegree.get(dependent) - 1;
+				inDegree.put(dependent, degree);
+				if (degree == 0)
+					ready.add(dependent);
+			}
+
+		final CountDownLatch latch = new CountDownLatch(schedulable);
+		for (Node node : nodeList)
+			if (node.dependsOn.isEmpty())
+				submit(executor, node, latch);
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			BeanBoxException.throwEX(e);
+		}
+
+		for (Node node : nodeList) // nodes in cycle or depends on cycle
+			if (node.remaining.get() > 0)
+				build(node);
+		Throwable e = error.get();
+		if (e != null)
+			BeanBoxException.throwEX("Fail to pre-instantiate singletons: " + e.getMessage(), e);
+	}
+
+	private void submit(final Executor executor, final Node node, final CountDownLatch latch) {
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					build(node);
+				} finally {
+					latch.countDown();
+					for (Node dependent : node.dependents)
+						if (dependent.remaining.decrementAndGet() == 0)
+							submit(executor, dependent, latch);
+				}
+			}
+		};
+		execute(executor, task);
+	}
+
+	private static void execute(Executor executor, Runnable task) {
+		if (executor == null)
+			task.run();
+		else
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {// NOSONAR
+				task.run();
+			}
+	}
+
+	private void build(Node node) {
+		try {
+			ctx.getBean(node.box, node.required);
+		} catch (Throwable e) {// NOSONAR
+			error.compareAndSet(null, e);
+		}
+	}
+
+	/**
+	 * Call preDestroy methods of found singletons, independent ones in parallel
+	 * by executor. If a preDestroy not finished in beanTimeout, singletons it
+	 * depends on are destroyed without waiting it, if all not finished in timeout,
+	 * others are not destroyed. Timeouts are milliseconds, 0 means no limit, if
+	 * executor is null, destroy one by one in calling thread and only timeout
+	 * checked before each destroy.
+	 */
+	void destroy(final Executor executor, long beanTimeout, long timeout, DestroyListener destroyListener) {
+		this.listener = destroyListener;
+		if (timeout > 0)
+			deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) | 1;
+		link();
+
+		// Kahn's algorithm on reversed edges, others are in cycle
+		Map<Node, Integer> outDegree = new IdentityHashMap<Node, Integer>();
+		List<Node> ready = new ArrayList<Node>();
+		for (Node node : nodeList) {
+			outDegree.put(node, node.dependents.size());
+			node.remaining.set(node.dependents.size());
+			if (node.dependents.isEmpty())
+				ready.add(node);
+		}
+		for (int i = 0; i < ready.size(); i++)
+			for (Node dep : ready.get(i).dependsOn) {
+				int degree = outDegree.get(dep) - 1;
+				outDegree.put(dep, degree);
+				if (degree == 0)
+					ready.add(dep);
+			}
+
+		CountDownLatch latch = new CountDownLatch(ready.size());
+		for (Node node : ready)
+			if (node.dependents.isEmpty())
+				submitDestroy(executor, node, latch);
+		waitDestroy(executor, latch, TimeUnit.MILLISECONDS.toNanos(beanTimeout));
+
+		for (int i = nodeList.size() - 1; i >= 0; i--) { // nodes in cycle or depended by cycle
+			Node node = nodeList.get(i);
+			if (node.start == 0 && !node.finished.get() && !isStopped())
+				destroyNode(null, node, null);
+		}
+		for (Node node : nodeList) // not destroyed in time
+			if (node.finished.compareAndSet(false, true))
+				report(node, node.start == 0 ? 0 : System.nanoTime() - node.start,
+						new TimeoutException("Not destroyed in " + timeout + "ms"));
+	}
+
+	/** Wait all destroy finished, release nodes not finished in beanTimeout */
+	private void waitDestroy(Executor executor, CountDownLatch latch, long beanTimeout) {
+		try {
+			while (latch.getCount() > 0) {
+				long now = System.nanoTime();
+				if (deadline != 0 && now - deadline >= 0) {
+					stopped = true;
+					return;
+				}
+				long wait = deadline != 0 ? deadline - now : Long.MAX_VALUE;
+				if (beanTimeout > 0) {
+					wait = Math.min(wait, beanTimeout);
+					for (Node node : nodeList) {
+						long start = node.start;
+						if (start == 0 || node.finished.get())
+							continue;
+						long left = start + beanTimeout - now;
+						if (left <= 0)
+							finishDestroy(executor, node, latch, now - start, new TimeoutException(
+									"Not destroyed in " + TimeUnit.NANOSECONDS.toMillis(beanTimeout) + "ms"));
+						else
+							wait = Math.min(wait, left);
+					}
+				}
+				if (wait == Long.MAX_VALUE)
+					latch.await();
+				else
+					latch.await(wait, TimeUnit.NANOSECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			stopped = true;
+		}
+	}
+
+	private boolean isStopped() {
+		if (!stopped && deadline != 0 && System.nanoTime() - deadline >= 0)
+			stopped = true;
+		return stopped;
+	}
+
+	private void submitDestroy(final Executor executor, final Node node, final CountDownLatch latch) {
+		if (isStopped())
+			return;
+		execute(executor, new Runnable() {
+			@Override
+			public void run() {
+				destroyNode(executor, node, latch);
+			}
+		});
+	}
+
+	private void destroyNode(Executor executor, Node node, CountDownLatch latch) {
+		if (isStopped())
+			return;
+		long start = System.nanoTime() | 1; // not 0
+		node.start = start;
+		Throwable e = null;
+		try {
+			Object bean = ctx.singletonCache.get(node.box);
+			if (bean != null && node.box.getPreDestroy() != null)
+				node.box.getPreDestroy().invoke(bean);
+		} catch (InvocationTargetException ite) {
+			e = ite.getTargetException();
+		} catch (Throwable t) {// NOSONAR
+			e = t;
+		}
+		finishDestroy(executor, node, latch, System.nanoTime() - start, e);
+	}
+
+	private void finishDestroy(Executor executor, Node node, CountDownLatch latch, long nanos, Throwable e) {
+		if (!node.finished.compareAndSet(false, true))
+			return; // already timeout
+		report(node, nanos, e);
+		if (latch == null)
+			return;
+		latch.countDown();
+		for (Node dep : node.dependsOn)
+			if (dep.remaining.decrementAndGet() == 0)
+				submitDestroy(executor, dep, latch);
+	}
+
+	private void report(Node node, long nanos, Throwable e) {
+		Object bean = ctx.singletonCache.get(node.box);
+		if (listener != null && bean != null && node.box.getPreDestroy() != null)
+			listener.destroyed(node.box, bean, nanos, e);
+	}
+
+}
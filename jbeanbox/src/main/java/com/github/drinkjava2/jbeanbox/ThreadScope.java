@@ -0,0 +1,46 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ThreadScope cache beans in current thread, each thread (include virtual
+ * thread) has its own beans. It is registered as "thread" scope by default,
+ * call end method before a pooled thread finish its task, to destroy beans of
+ * current thread.
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+public class ThreadScope implements Scope {
+	private final ThreadLocal<Map<BeanBox, Object>> beans = new ThreadLocal<Map<BeanBox, Object>>();
+
+	@Override
+	public Map<BeanBox, Object> getBeans(BeanBoxContext ctx) {
+		Map<BeanBox, Object> result = beans.get();
+		if (result == null) {
+			result = new HashMap<BeanBox, Object>();
+			beans.set(result);
+		}
+		return result;
+	}
+
+	/** Call preDestroy methods of beans of current thread and remove them */
+	public void end(BeanBoxContext ctx) {
+		Map<BeanBox, Object> result = beans.get();
+		if (result != null) {
+			beans.remove();
+			ctx.destroyScopedBeans(result);
+		}
+	}
+
+}
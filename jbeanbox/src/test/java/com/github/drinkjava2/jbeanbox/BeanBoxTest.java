@@ -1,6 +1,11 @@
 package com.github.drinkjava2.jbeanbox;
 
+import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Test;
+
+import com.github.drinkjava2.jbeanbox.benchmark.BoxConfig1;
+import com.github.drinkjava2.jbeanbox.benchmark.objects.A;
 
 /**
  * BeanBoxTest
@@ -14,4 +19,51 @@ public class BeanBoxTest {
 		BeanBoxContext.reset();
 	}
 
-}
\ No newline at end of file
+	public static class Demo {
+		public String name;
+	}
+
+	@Test
+	public void compileTest() {
+		BeanBoxContext ctx = new BeanBoxContext().setAllowAnnotation(false);
+		BeanBox box = ctx.getBeanBox(BoxConfig1.ABox.class);
+		ctx.compile();
+		Assert.assertNotNull(box.plan);
+		A a1 = ctx.getBean(BoxConfig1.ABox.class);
+		A a2 = ctx.getBean(BoxConfig1.ABox.class);
+		Assert.assertTrue(a1 != a2);
+		Assert.assertTrue(a1.b.c.d1.e != a2.b.c.d1.e);
+	}
+
+	@Test
+	public void recompileTest() {
+		BeanBoxContext ctx = new BeanBoxContext();
+		BeanBox box = new BeanBox(Demo.class).setPrototype(true).injectValue("name", "Sam");
+		Demo d1 = ctx.getBean(box);
+		Assert.assertEquals("Sam", d1.name);
+		Assert.assertTrue(d1 != ctx.getBean(box));
+
+		box.setSingleton(true).injectValue("name", "Tom"); // changed box will be re-compiled
+		Demo d2 = ctx.getBean(box);
+		Assert.assertEquals("Tom", d2.name);
+		Assert.assertTrue(d2 == ctx.getBean(box));
+	}
+
+	@Test
+	public void sharedBoxTest() throws Exception {
+		BeanBoxContext ctx1 = new BeanBoxContext();
+		BeanBoxContext ctx2 = new BeanBoxContext();
+		BeanBox box = new BeanBox(Demo.class).setPrototype(true).injectValue("name", "Sam");
+		BeanBoxPlan plan1 = ctx1.getPlan(box);
+		BeanBoxPlan plan2 = ctx2.getPlan(box);
+		Assert.assertNotSame(plan1, plan2);
+		Assert.assertSame(plan1, ctx1.getPlan(box)); // not re-compiled when contexts alternate
+		Assert.assertSame(plan2, ctx2.getPlan(box));
+
+		box.getFieldInjects().put(Demo.class.getField("name"), new BeanBox().setAsValue("Tom").setType(String.class));
+		box.changed(); // changes made by getters need be told
+		Assert.assertEquals("Tom", ctx1.<Demo> getBean(box).name);
+		Assert.assertEquals("Tom", ctx2.<Demo> getBean(box).name);
+	}
+
+}
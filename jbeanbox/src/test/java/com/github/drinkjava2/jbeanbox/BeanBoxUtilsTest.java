@@ -11,6 +11,13 @@
  */
 package com.github.drinkjava2.jbeanbox;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
@@ -279,4 +286,81 @@ public class BeanBoxUtilsTest {
 				box.getConfigMethod());
 	}
 
+	// =============== scan =============
+	protected void Scan_______________() {
+	}
+
+	/** Count how many times a BeanBox is put into meta cache */
+	public static class CountingCache extends ConcurrentHashMap<Class<?>, BeanBox> {
+		private static final long serialVersionUID = 1L;
+		AtomicInteger puts = new AtomicInteger();
+
+		@Override
+		public BeanBox putIfAbsent(Class<?> key, BeanBox value) {
+			puts.incrementAndGet();
+			return super.putIfAbsent(key, value);
+		}
+	}
+
+	@Test
+	public void scanTest() {
+		BeanBoxContext ctx = new BeanBoxContext();
+		CountingCache cache = new CountingCache();
+		ctx.setBeanBoxMetaCache(cache);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Class<?>> classes = new ArrayList<Class<?>>();
+		for (int i = 0; i < 50; i++) { // same classes asked by many threads
+			classes.add(Demo9.class);
+			classes.add(Demo7.class);
+		}
+		try {
+			ctx.scan(classes, executor);
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals(2, cache.puts.get()); // each class only built once
+		Assert.assertSame(cache.get(Demo9.class), ctx.getBeanBox(Demo9.class));
+		Assert.assertEquals(5, ctx.getBeanBox(Demo9.class).getMethodInjects().size());
+	}
+
+	@Test
+	public void scanNoExecutorTest() {
+		BeanBoxContext ctx = new BeanBoxContext();
+		List<Class<?>> classes = new ArrayList<Class<?>>();
+		classes.add(Demo9.class);
+		ctx.scan(classes, null);
+		Assert.assertTrue(ctx.getBeanBoxMetaCache().containsKey(Demo9.class));
+	}
+
+	@Test
+	public void nameMatchTest() {
+		Assert.assertTrue(BeanBoxUtils.nameMatch("*abc.ef", "any.abc.ef"));
+		Assert.assertTrue(BeanBoxUtils.nameMatch("abc.ef*", "abc.efg.hj"));
+		Assert.assertTrue(BeanBoxUtils.nameMatch("abc*def", "abcany*anydef"));
+		Assert.assertTrue(BeanBoxUtils.nameMatch("abc", "abc"));
+		Assert.assertTrue(BeanBoxUtils.nameMatch("*", "abc"));
+		Assert.assertTrue(BeanBoxUtils.nameMatch("com.*.*Service*", "com.foo.UserService2"));
+		Assert.assertTrue(BeanBoxUtils.nameMatch("*abc*", "abc"));
+		Assert.assertFalse(BeanBoxUtils.nameMatch("com.*.*Service*", "com.foo.UserDao"));
+		Assert.assertFalse(BeanBoxUtils.nameMatch("abc*bcd", "abcd")); // no overlap
+		Assert.assertFalse(BeanBoxUtils.nameMatch("abc", "abcd"));
+		Assert.assertFalse(BeanBoxUtils.nameMatch("", "abc"));
+		Assert.assertFalse(BeanBoxUtils.nameMatch(null, "abc"));
+		Assert.assertFalse(BeanBoxUtils.nameMatch("*", null));
+	}
+
+	@Test
+	public void matchAopRulesTest() {
+		BeanBoxContext ctx = new BeanBoxContext();
+		Assert.assertTrue(ctx.matchAopRules("com.foo.UserService").isEmpty());
+		ctx.addContextAop(new Object(), "com.foo.*", "*");
+		ctx.addContextAop(new Object(), "com.bar.*", "*");
+		ctx.addContextAop(new Object(), "*Service", "*");
+		Assert.assertEquals("{0, 2}", ctx.matchAopRules("com.foo.UserService").toString());
+		Assert.assertSame(ctx.matchAopRules("com.foo.UserService"), ctx.matchAopRules("com.foo.UserService"));
+		ctx.addContextAop(new Object(), "com.foo.User*", "*"); // cache renewed
+		Assert.assertEquals("{0, 2, 3}", ctx.matchAopRules("com.foo.UserService").toString());
+	}
+
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import javax.inject.Inject;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.drinkjava2.jbeanbox.annotation.INJECT;
+import com.github.drinkjava2.jbeanbox.annotation.POSTCONSTRUCT;
+import com.github.drinkjava2.jbeanbox.annotation.PROTOTYPE;
+import com.github.drinkjava2.jbeanbox.annotation.VALUE;
+import com.github.drinkjava2.jbeanbox.benchmark.objects.A;
+
+/**
+ * Bytecode generated BeanFactory test
+ * 
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+public class BytecodeFactoryTest {
+	@Before
+	public void init() {
+		BeanBoxContext.reset();
+	}
+
+	public static class Dep {
+	}
+
+	@PROTOTYPE
+	public static class Demo {
+		final Dep constrDep;
+
+		@Inject
+		Dep fieldDep; // package visible, use factory
+
+		@Inject
+		private Dep privateDep; // private, use reflection
+
+		@VALUE("3")
+		int intValue;
+
+		long longValue;
+
+		String init;
+
+		@Inject
+		public Demo(Dep dep) {
+			this.constrDep = dep;
+		}
+
+		@INJECT
+		void setLong(@VALUE("7") long l) {
+			this.longValue = l;
+		}
+
+		@POSTCONSTRUCT
+		public void init() {
+			init = "done";
+		}
+	}
+
+	@Test
+	public void factoryTest() {
+		BeanBoxContext ctx = new BeanBoxContext().setAllowBytecodeFactory(true);
+		Demo demo = ctx.getBean(Demo.class);
+		Assert.assertNotNull(demo.constrDep);
+		Assert.assertNotNull(demo.fieldDep);
+		Assert.assertNotNull(demo.privateDep);
+		Assert.assertEquals(3, demo.intValue);
+		Assert.assertEquals(7L, demo.longValue);
+		Assert.assertEquals("done", demo.init);
+		Assert.assertTrue(demo != ctx.getBean(Demo.class));
+		Assert.assertTrue(ctx.getBeanBox(Demo.class).plan.steps[0] instanceof BeanBoxPlan.FactoryCreateStep);
+	}
+
+	@Test
+	public void prototypeGraphTest() {
+		BeanBoxContext ctx = new BeanBoxContext().setAllowBytecodeFactory(true);
+		A a1 = ctx.getBean(A.class);
+		A a2 = ctx.getBean(A.class);
+		Assert.assertTrue(a1 != a2);
+		Assert.assertTrue(a1.b.c.d1.e != a2.b.c.d1.e);
+	}
+
+}
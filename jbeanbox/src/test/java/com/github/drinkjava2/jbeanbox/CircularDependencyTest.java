@@ -11,6 +11,9 @@
  */
 package com.github.drinkjava2.jbeanbox;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import javax.inject.Inject;
 
 import org.junit.Assert;
@@ -134,4 +137,31 @@ public class CircularDependencyTest {
 		JBEANBOX.getBean(E.class);
 	}
 
+	/** Resolving stack should be empty after circular dependency exception */
+	@Test
+	public void stackClearedTest() {
+		try {
+			JBEANBOX.getBean(C.class);
+			Assert.fail("Should throw BeanBoxException");
+		} catch (BeanBoxException e) {
+			Assert.assertTrue(e.getMessage().contains("circular dependency"));
+		}
+		Assert.assertEquals(0, ResolveStack.get().size());
+		A a = JBEANBOX.getBean(A.class);
+		Assert.assertTrue(a == a.b.a);
+		Assert.assertEquals(0, ResolveStack.get().size());
+	}
+
+	@SuppressWarnings("deprecation")
+	@Test
+	public void deprecatedHistoryTest() {
+		Set<Object> history = new HashSet<Object>();
+		A a = JBEANBOX.bctx().getBean(A.class, true, history); // history ignored
+		Assert.assertTrue(a == a.b.a);
+		Assert.assertTrue(history.isEmpty());
+		Caller caller = new Caller(JBEANBOX.bctx(), true, history, null);
+		Assert.assertSame(history, caller.getHistory());
+		Assert.assertSame(a, caller.get(A.class));
+	}
+
 }
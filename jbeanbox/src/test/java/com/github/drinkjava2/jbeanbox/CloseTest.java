@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.inject.Inject;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.drinkjava2.jbeanbox.annotation.PREDESTROY;
+
+/**
+ * Test BeanBoxContext's close methods destroy singletons in reverse dependency
+ * order
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+public class CloseTest {
+	static List<String> destroyed = new CopyOnWriteArrayList<String>();
+	static long sleep;
+
+	@Before
+	public void init() {
+		BeanBoxContext.reset();
+		destroyed.clear();
+		sleep = 0;
+	}
+
+	public static class Base {
+		@PREDESTROY
+		public void destroy() throws InterruptedException {
+			Thread.sleep(sleep);
+			destroyed.add(getClass().getSimpleName());
+		}
+	}
+
+	public static class D1 extends Base {
+	}
+
+	public static class D2 extends Base {
+	}
+
+	public static class Top extends Base {
+		@Inject
+		public D1 d1;
+
+		@Inject
+		public D2 d2;
+	}
+
+	public static class Bad {
+		@Inject
+		public D1 d1;
+
+		@PREDESTROY
+		public void destroy() {
+			throw new IllegalStateException("bad");
+		}
+	}
+
+	/** Record cost and error of each destroyed bean */
+	static class Recorder implements DestroyListener {
+		Map<String, Throwable> errors = new ConcurrentHashMap<String, Throwable>();
+		Map<String, Long> costs = new ConcurrentHashMap<String, Long>();
+
+		@Override
+		public void destroyed(BeanBox box, Object bean, long nanos, Throwable error) {
+			String name = bean.getClass().getSimpleName();
+			costs.put(name, nanos);
+			if (error != null)
+				errors.put(name, error);
+		}
+	}
+
+	@Test
+	public void orderTest() {
+		BeanBoxContext ctx = new BeanBoxContext();
+		Recorder recorder = new Recorder();
+		ctx.setDestroyListener(recorder);
+		ctx.getBean(D2.class);
+		ctx.getBean(Top.class);
+		ctx.getBean(Bad.class);
+		ctx.close();
+		Assert.assertEquals(3, destroyed.size());
+		Assert.assertTrue(destroyed.indexOf("Top") < destroyed.indexOf("D1"));
+		Assert.assertTrue(destroyed.indexOf("Top") < destroyed.indexOf("D2"));
+		Assert.assertEquals(4, recorder.costs.size());
+		Assert.assertEquals(1, recorder.errors.size());
+		Assert.assertTrue(recorder.errors.get("Bad") instanceof IllegalStateException);
+		Assert.assertTrue(ctx.getSingletonCache().isEmpty());
+	}
+
+	@Test
+	public void noMetadataCreatedTest() {
+		final BeanBoxContext ctx = new BeanBoxContext();
+		final List<Class<?>> found = new CopyOnWriteArrayList<Class<?>>();
+		ctx.setDestroyListener(new DestroyListener() {
+			@Override
+			public void destroyed(BeanBox box, Object bean, long nanos, Throwable error) {
+				if (ctx.getBeanBoxMetaCache().containsKey(D2.class))
+					found.add(D2.class);
+			}
+		});
+		ctx.getBean(Top.class);
+		ctx.getBeanBoxMetaCache().remove(D2.class); // D2 singleton built, metadata unknown
+		ctx.close();
+		Assert.assertEquals(3, destroyed.size());
+		Assert.assertTrue(found.isEmpty());
+	}
+
+	@Test
+	public void parallelTest() {
+		sleep = 200;
+		BeanBoxContext ctx = new BeanBoxContext();
+		ctx.getBean(Top.class);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			long start = System.currentTimeMillis();
+			ctx.close(executor, 0, 0);
+			long cost = System.currentTimeMillis() - start;
+			Assert.assertEquals("Top", destroyed.get(0));
+			Assert.assertEquals(3, destroyed.size());
+			Assert.assertTrue("cost " + cost, cost < 550); // D1 and D2 destroyed at same time
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void timeoutTest() throws InterruptedException {
+		sleep = 300;
+		BeanBoxContext ctx = new BeanBoxContext();
+		Recorder recorder = new Recorder();
+		ctx.setDestroyListener(recorder);
+		ctx.getBean(Top.class);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			long start = System.currentTimeMillis();
+			ctx.close(executor, 100, 0);
+			long cost = System.currentTimeMillis() - start;
+			Assert.assertTrue("cost " + cost, cost < 550); // not wait 300ms for each
+			Assert.assertEquals(3, recorder.errors.size());
+			Assert.assertTrue(recorder.errors.get("Top") instanceof TimeoutException);
+
+			recorder.errors.clear();
+			ctx = new BeanBoxContext().setDestroyListener(recorder);
+			ctx.getBean(Top.class);
+			start = System.currentTimeMillis();
+			ctx.close(executor, 0, 100); // Top not finished, D1 and D2 not started
+			cost = System.currentTimeMillis() - start;
+			Assert.assertTrue("cost " + cost, cost < 250);
+			Assert.assertEquals(3, recorder.errors.size());
+			Assert.assertTrue(recorder.errors.get("D1") instanceof TimeoutException);
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(5, TimeUnit.SECONDS); // timeout preDestroy still running
+		}
+	}
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import javax.inject.Inject;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test BeanBoxContext's fork and freeze methods
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+public class ForkTest {
+
+	@Before
+	public void init() {
+		BeanBoxContext.reset();
+	}
+
+	public static class Dao {
+	}
+
+	public static class TenantDao extends Dao {
+	}
+
+	public static class Service {
+		@Inject
+		public Dao dao;
+	}
+
+	@Test
+	public void forkTest() {
+		BeanBoxContext base = new BeanBoxContext().bind("tenant", new BeanBox().setAsValue("default"));
+		BeanBoxContext fork1 = base.fork();
+		BeanBoxContext fork2 = base.fork().bind("tenant", new BeanBox().setAsValue("t2"));
+		fork2.bind(Dao.class, TenantDao.class);
+		Assert.assertTrue(base.isFrozen());
+
+		Service s1 = fork1.getBean(Service.class);
+		Service s2 = fork2.getBean(Service.class);
+		Assert.assertNotSame(s1, s2); // singletons not shared
+		Assert.assertSame(s1, fork1.getBean(Service.class));
+		Assert.assertEquals("default", fork1.getBean("tenant"));
+		Assert.assertEquals("t2", fork2.getBean("tenant"));
+		Assert.assertEquals(Dao.class, s1.dao.getClass());
+		Assert.assertEquals(TenantDao.class, s2.dao.getClass());
+
+		BeanBox box = fork1.getBeanBox(Service.class);
+		Assert.assertSame(box, fork2.getBeanBox(Service.class)); // metadata shared
+		Assert.assertSame(base.getPlan(box), fork2.getPlan(box)); // plan shared
+		Assert.assertTrue(base.getSingletonCache().isEmpty());
+
+		fork2.close();
+		Assert.assertSame(box, base.getBeanBox(Service.class));
+		Assert.assertEquals("default", fork2.getBean("tenant")); // overrides cleared
+		Service s3 = fork2.getBean(Service.class);
+		Assert.assertEquals(Dao.class, s3.dao.getClass());
+
+		base.close(); // forks still alive
+		Assert.assertSame(box, fork1.getBeanBox(Service.class));
+		Assert.assertSame(s1, fork1.getBean(Service.class));
+		Assert.assertEquals("default", fork1.getBean("tenant"));
+		Assert.assertEquals("default", base.getBean("tenant"));
+	}
+
+	@Test
+	public void frozenTest() {
+		BeanBoxContext base = new BeanBoxContext();
+		BeanBoxContext fork = base.fork();
+		try {
+			base.bind("a", "b");
+			Assert.fail("Base is frozen");
+		} catch (BeanBoxException e) {// NOSONAR
+		}
+		try {
+			fork.addContextAop(new Object(), "*", "*");
+			Assert.fail("AOP rules of fork come from base");
+		} catch (BeanBoxException e) {// NOSONAR
+		}
+		fork.bind("a", new BeanBox().setAsValue("b"));
+		Assert.assertEquals("b", fork.getBean("a"));
+		Assert.assertEquals(EMPTY.class, base.getBean("a", false));
+	}
+
+	@Test
+	public void freezeTest() {
+		BeanBoxContext ctx = new BeanBoxContext().bind("service", Service.class);
+		Dao dao = ctx.getBean(Dao.class);
+		BeanBoxContext request = ctx.openScope(); // opened before frozen
+		ctx.freeze();
+		Assert.assertTrue(ctx.bindCache instanceof FrozenMap);
+		Assert.assertTrue(ctx.getBeanBoxMetaCache().containsKey(Service.class)); // found by validate
+		Assert.assertSame(dao, ctx.getBean(Dao.class));
+
+		Service service = ctx.getBean("service"); // created after frozen
+		Assert.assertSame(service, ctx.getBean(Service.class));
+		Assert.assertSame(service, request.getBean(Service.class));
+		Assert.assertSame(dao, service.dao);
+		try {
+			ctx.bindCache.put("a", "b");
+			Assert.fail("Bindings are read only");
+		} catch (UnsupportedOperationException e) {// NOSONAR
+		}
+		ctx.close();
+		Assert.assertTrue(ctx.getSingletonCache().isEmpty());
+		Assert.assertTrue(ctx.isFrozen()); // frozen tables kept, still frozen
+		Assert.assertTrue(ctx.getSingletonCache() instanceof FrozenMap);
+		Assert.assertTrue(ctx.getBeanBoxMetaCache().containsKey(Service.class));
+		Service service2 = ctx.getBean("service");
+		Assert.assertNotSame(service, service2);
+		Assert.assertSame(service2, ctx.getBean(Service.class));
+		try {
+			ctx.bind("a", "b");
+			Assert.fail("Still frozen after closed");
+		} catch (BeanBoxException e) {// NOSONAR
+		}
+	}
+
+	@Test(expected = BeanBoxException.class)
+	public void circularBindingTest() {
+		new BeanBoxContext().bind("a", "b").bind("b", "c").bind("c", "a").freeze();
+	}
+
+	@Test
+	public void resolvedBindingsTest() {
+		BeanBoxContext ctx = new BeanBoxContext().bind("dao", "tenantDao").bind("tenantDao", TenantDao.class);
+		ctx.freeze();
+		Assert.assertTrue(ctx.resolvedBindings instanceof FrozenMap);
+		Assert.assertEquals(TenantDao.class, ctx.resolvedBindings.get("dao")); // resolved when frozen
+		Assert.assertEquals(TenantDao.class, ctx.getBean("dao").getClass());
+		Assert.assertEquals(Dao.class, ctx.getBean(Dao.class).getClass()); // not bound
+		Assert.assertNull(ctx.resolvedBindings.get(Dao.class));
+	}
+
+	public static class CtorA {
+		@Inject
+		public CtorA(CtorB b) {// NOSONAR
+		}
+	}
+
+	public static class CtorB {
+		@Inject
+		public CtorB(CtorA a) {// NOSONAR
+		}
+	}
+
+	public static class FieldA {
+		@Inject
+		public FieldB b;
+	}
+
+	public static class FieldB {
+		@Inject
+		public FieldA a;
+	}
+
+	public static class NeedName {
+		public String name;
+	}
+
+	@Test
+	public void constructorCycleTest() {
+		BeanBoxContext ctx = new BeanBoxContext();
+		ctx.getBeanBox(CtorA.class);
+		try {
+			ctx.freeze();
+			Assert.fail("Constructor cycle can not be built");
+		} catch (BeanBoxException e) {
+			Assert.assertTrue(e.getMessage().contains("Circular constructor dependency"));
+		}
+		ctx = new BeanBoxContext();
+		ctx.getBeanBox(FieldA.class);
+		ctx.freeze(); // field cycle can be built by early reference
+		Assert.assertSame(ctx.getBean(FieldA.class), ctx.<FieldB> getBean(FieldB.class).a);
+	}
+
+	@Test
+	public void missingTargetTest() {
+		BeanBox box = new BeanBox(NeedName.class).injectField("name", JBEANBOX.inject("notBound"));
+		BeanBoxContext ctx = new BeanBoxContext().bind("needName", box);
+		try {
+			ctx.freeze();
+			Assert.fail("Required target not found");
+		} catch (BeanBoxException e) {
+			Assert.assertTrue(e.getMessage().contains("notBound"));
+		}
+		ctx.bind("notBound", new BeanBox().setAsValue("Tom")).freeze();
+		Assert.assertEquals("Tom", ctx.<NeedName> getBean("needName").name);
+	}
+
+}
@@ -71,6 +71,31 @@ public class JavaInjectTest {
 		Assert.assertEquals("Hello", box2.getBean());
 	}
 
+	@Test
+	public void bindChainTest() { // binding chains are resolved once and renewed by bind
+		BeanBoxContext ctx = new BeanBoxContext();
+		ctx.bind("D", "C").bind("C", "B").bind("B", Foo.class);
+		Assert.assertEquals(Foo.class, ctx.resolveTarget("D"));
+		Foo foo = ctx.getBean("D");
+		Assert.assertSame(foo, ctx.getBean(Foo.class));
+		ctx.bind("C", Bar.class);
+		Assert.assertEquals(Bar.class, ctx.resolveTarget("D"));
+		Assert.assertTrue(ctx.getBean("D") instanceof Bar);
+		Assert.assertEquals("E", ctx.resolveTarget("E")); // not bound
+		ctx.getBean(new BeanBox(Foo.class));
+		Assert.assertEquals(1, ctx.resolvedBindings.size()); // only bound targets cached
+		try {
+			ctx.getBindCache().put("C", Foo.class);
+			Assert.fail("Bindings only changed by bind method");
+		} catch (UnsupportedOperationException e) {// NOSONAR
+		}
+	}
+
+	@Test(expected = BeanBoxException.class)
+	public void bindLoopTest() {
+		new BeanBoxContext().bind("A", "B").bind("B", "A").getBean("A");
+	}
+
 	@Test
 	public void getBeanByTarget1() { // Test target
 		Assert.assertEquals("Hello", new BeanBox().setTarget(HelloBox.class).getBean());
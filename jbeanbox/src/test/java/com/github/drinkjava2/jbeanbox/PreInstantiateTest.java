@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.drinkjava2.jbeanbox.annotation.POSTCONSTRUCT;
+import com.github.drinkjava2.jbeanbox.annotation.PROTOTYPE;
+
+/**
+ * Test BeanBoxContext's preInstantiateSingletons method
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+public class PreInstantiateTest {
+	static AtomicInteger running = new AtomicInteger();
+	static AtomicInteger maxRunning = new AtomicInteger();
+	static AtomicInteger inited = new AtomicInteger();
+
+	@Before
+	public void init() {
+		BeanBoxContext.reset();
+		running.set(0);
+		maxRunning.set(0);
+		inited.set(0);
+	}
+
+	public static class SlowBean {
+		@POSTCONSTRUCT
+		public void init() throws InterruptedException {
+			int now = running.incrementAndGet();
+			while (true) {
+				int max = maxRunning.get();
+				if (now <= max || maxRunning.compareAndSet(max, now))
+					break;
+			}
+			Thread.sleep(100);
+			inited.incrementAndGet();
+			running.decrementAndGet();
+		}
+	}
+
+	public static class X1 extends SlowBean {
+	}
+
+	public static class X2 extends SlowBean {
+	}
+
+	public static class X3 extends SlowBean {
+	}
+
+	@PROTOTYPE
+	public static class P {
+		@Inject
+		public X3 x3;
+	}
+
+	public static class Y {
+		public X1 x1;
+		public X2 x2;
+		public int initedWhenCreate;
+
+		@Inject
+		public Y(X1 x1, X2 x2) {
+			this.x1 = x1;
+			this.x2 = x2;
+			initedWhenCreate = inited.get();
+		}
+
+		@Inject
+		public P p;
+	}
+
+	@Test
+	public void parallelTest() {
+		BeanBoxContext ctx = new BeanBoxContext();
+		ctx.getBeanBox(Y.class);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			ctx.preInstantiateSingletons(executor);
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertEquals(3, inited.get());
+		Assert.assertTrue(maxRunning.get() > 1);
+		Y y = ctx.getBean(Y.class);
+		Assert.assertEquals(3, y.initedWhenCreate); // X3 is dependency of prototype P
+		Assert.assertSame(ctx.getBean(X1.class), y.x1);
+		Assert.assertEquals(3, inited.get());
+	}
+
+	@Test
+	public void noExecutorTest() {
+		BeanBoxContext ctx = new BeanBoxContext();
+		ctx.bind("y", Y.class);
+		ctx.preInstantiateSingletons(null);
+		Assert.assertEquals(3, inited.get());
+		Assert.assertEquals(1, maxRunning.get());
+	}
+
+	public static class A {
+		@Inject
+		public B b;
+	}
+
+	public static class B {
+		@Inject
+		public A a;
+	}
+
+	@Test
+	public void circularTest() {
+		BeanBoxContext ctx = new BeanBoxContext();
+		ctx.getBeanBox(A.class);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			ctx.preInstantiateSingletons(executor);
+		} finally {
+			executor.shutdown();
+		}
+		A a = ctx.getBean(A.class);
+		Assert.assertSame(a, a.b.a);
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.drinkjava2.asm5_0_3.ClassVisitor;
+import com.github.drinkjava2.cglib3_2_0.proxy.Enhancer;
+import com.github.drinkjava2.cglib3_2_0.proxy.NoOp;
+
+/**
+ * Test proxy classes saved to and loaded from BeanBoxContext's proxyCacheDir
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+public class ProxyClassCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void init() {
+		BeanBoxContext.reset();
+	}
+
+	public static class Demo {
+		public String hello() {
+			return "Hello";
+		}
+	}
+
+	public static class DemoAOP implements MethodInterceptor {
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			return invocation.proceed() + "!";
+		}
+	}
+
+	/** Create proxy class in a new ClassLoader, count how many times generated */
+	private static Class<?> createClass(final AtomicInteger generated, File dir, String description) {
+		return createClass(generated, dir, description, new URLClassLoader(new URL[0], Demo.class.getClassLoader()));
+	}
+
+	private static Class<?> createClass(final AtomicInteger generated, File dir, String description,
+			ClassLoader loader) {
+		Enhancer enhancer = new Enhancer() {
+			@Override
+			public void generateClass(ClassVisitor v) throws Exception {
+				generated.incrementAndGet();
+				super.generateClass(v);
+			}
+		};
+		enhancer.setSuperclass(Demo.class);
+		enhancer.setClassLoader(loader);
+		enhancer.setCallbackType(NoOp.class);
+		enhancer.setStrategy(new ProxyClassCache(dir, Demo.class, description));
+		return enhancer.createClass();
+	}
+
+	@Test
+	public void loadTest() throws IOException {
+		File dir = folder.newFolder();
+		AtomicInteger generated = new AtomicInteger();
+		Class<?> first = createClass(generated, dir, "demo");
+		Assert.assertEquals(1, generated.get());
+		Assert.assertEquals(1, dir.listFiles().length);
+
+		Class<?> second = createClass(generated, dir, "demo");
+		Assert.assertEquals(1, generated.get()); // loaded from file
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(first.getName(), second.getName());
+
+		createClass(generated, dir, "other");
+		Assert.assertEquals(2, generated.get()); // different proxy
+		Assert.assertEquals(2, dir.listFiles().length);
+
+		for (File file : dir.listFiles()) {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(new byte[] { 1, 2, 3 });
+			} finally {
+				out.close();
+			}
+		}
+		createClass(generated, dir, "demo");
+		Assert.assertEquals(3, generated.get()); // broken file, generate again
+		createClass(generated, dir, "demo");
+		Assert.assertEquals(3, generated.get()); // file saved again
+	}
+
+	@Test
+	public void reservedNameTest() throws IOException {
+		File dir = folder.newFolder();
+		AtomicInteger generated = new AtomicInteger();
+		Class<?> first = createClass(generated, dir, "demo");
+		ClassLoader loader = new URLClassLoader(new URL[0], Demo.class.getClassLoader());
+		Enhancer other = new Enhancer();
+		other.setClassLoader(loader);
+		Assert.assertTrue(other.reserveClassName(first.getName())); // other generator is using the name
+		Class<?> second = createClass(generated, dir, "demo", loader);
+		Assert.assertEquals(2, generated.get()); // not loaded, generate again
+		Assert.assertNotEquals(first.getName(), second.getName());
+	}
+
+	@Test
+	public void contextTest() throws IOException {
+		File dir = folder.newFolder();
+		BeanBoxContext ctx = new BeanBoxContext().setProxyCacheDir(dir);
+		Demo demo = ctx.getBean(new BeanBox(Demo.class).addBeanAop(DemoAOP.class, "hel*"));
+		Assert.assertEquals("Hello!", demo.hello());
+		Assert.assertEquals(1, dir.listFiles().length);
+	}
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.drinkjava2.jbeanbox.annotation.POSTCONSTRUCT;
+import com.github.drinkjava2.jbeanbox.annotation.PREDESTROY;
+import com.github.drinkjava2.jbeanbox.annotation.PROTOTYPE;
+
+/**
+ * Test request, thread and custom scopes
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+public class ScopeTest {
+	static AtomicInteger destroyed = new AtomicInteger();
+
+	@Before
+	public void init() {
+		BeanBoxContext.reset();
+		destroyed.set(0);
+	}
+
+	public static class Service {
+	}
+
+	public static class RequestBean {
+		@Inject
+		public Service service;
+
+		@PREDESTROY
+		public void destroy() {
+			destroyed.incrementAndGet();
+		}
+	}
+
+	@PROTOTYPE
+	public static class Handler {
+		@Inject
+		public RequestBean requestBean;
+	}
+
+	public static class ThreadBean {
+	}
+
+	public static class Greeter {
+		public String hello() {
+			return "hello";
+		}
+	}
+
+	public static class UpperAOP implements MethodInterceptor {
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			return ((String) invocation.proceed()).toUpperCase();
+		}
+	}
+
+	@Test
+	public void requestScopeTest() {
+		BeanBoxContext ctx = new BeanBoxContext();
+		ctx.getBeanBox(RequestBean.class).setScope(BeanBoxContext.REQUEST);
+		BeanBoxContext request1 = ctx.openScope();
+		Handler h1 = request1.getBean(Handler.class);
+		Handler h2 = request1.getBean(Handler.class);
+		Assert.assertNotSame(h1, h2);
+		Assert.assertSame(h1.requestBean, h2.requestBean);
+		Assert.assertSame(ctx.getBean(Service.class), h1.requestBean.service); // singleton shared
+
+		BeanBoxContext request2 = ctx.openScope();
+		RequestBean r2 = request2.getBean(RequestBean.class);
+		Assert.assertNotSame(h1.requestBean, r2);
+		Assert.assertSame(h1.requestBean.service, r2.service);
+
+		request1.close();
+		Assert.assertEquals(1, destroyed.get());
+		Assert.assertNotSame(h1.requestBean, request1.getBean(RequestBean.class)); // created again
+		Assert.assertSame(ctx.getBean(Service.class), r2.service); // parent not closed
+
+		try {
+			ctx.getBean(RequestBean.class);
+			Assert.fail("No active request scope");
+		} catch (BeanBoxException e) {
+			Assert.assertTrue(e.getMessage().contains("request"));
+		}
+	}
+
+	@Test
+	public void parentSettingsTest() {
+		BeanBoxContext ctx = new BeanBoxContext();
+		ctx.getBeanBox(Greeter.class).setScope(BeanBoxContext.REQUEST);
+		BeanBoxContext request = ctx.openScope();
+		ctx.addContextAop(UpperAOP.class, Greeter.class, "hel*"); // added after scope opened
+		Greeter greeter = request.getBean(Greeter.class);
+		Assert.assertEquals("HELLO", greeter.hello());
+		try {
+			request.addContextAop(UpperAOP.class, Service.class, "*");
+			Assert.fail("Settings come from parent");
+		} catch (BeanBoxException e) {// NOSONAR
+		}
+
+		request.bind("name", new BeanBox().setAsValue("Tom")); // bindings shared with parent
+		Assert.assertEquals("Tom", ctx.getBean("name"));
+		ctx.freeze();
+		try {
+			request.bind("name", "Sam");
+			Assert.fail("Parent is frozen");
+		} catch (BeanBoxException e) {// NOSONAR
+		}
+		Assert.assertEquals("Tom", request.getBean("name"));
+	}
+
+	@Test
+	public void threadScopeTest() throws InterruptedException {
+		final BeanBoxContext ctx = new BeanBoxContext();
+		ctx.getBeanBox(ThreadBean.class).setScope(BeanBoxContext.THREAD);
+		final ThreadBean[] other = new ThreadBean[1];
+		ThreadBean t1 = ctx.getBean(ThreadBean.class);
+		Assert.assertSame(t1, ctx.getBean(ThreadBean.class));
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				other[0] = ctx.getBean(ThreadBean.class);
+			}
+		};
+		thread.start();
+		thread.join();
+		Assert.assertNotNull(other[0]);
+		Assert.assertNotSame(t1, other[0]);
+		((ThreadScope) ctx.getScope(BeanBoxContext.THREAD)).end(ctx);
+		Assert.assertNotSame(t1, ctx.getBean(ThreadBean.class));
+	}
+
+	@Test
+	public void customScopeTest() {
+		final Map<BeanBox, Object> session = new HashMap<BeanBox, Object>();
+		BeanBoxContext ctx = new BeanBoxContext().registerScope("session", new Scope() {
+			@Override
+			public Map<BeanBox, Object> getBeans(BeanBoxContext c) {
+				return session;
+			}
+		});
+		BeanBox box = new BeanBox(Service.class).setScope("session");
+		Object bean = ctx.getBean(box);
+		Assert.assertSame(bean, ctx.getBean(box));
+		Assert.assertSame(bean, session.get(box));
+		session.clear();
+		Assert.assertNotSame(bean, ctx.getBean(box));
+	}
+
+	public static class SlowBean {
+		static AtomicInteger inited = new AtomicInteger();
+
+		@POSTCONSTRUCT
+		public void init() throws InterruptedException {
+			Thread.sleep(100);
+			inited.incrementAndGet();
+		}
+	}
+
+	@Test
+	public void concurrentCreateTest() throws InterruptedException {
+		SlowBean.inited.set(0);
+		BeanBoxContext ctx = new BeanBoxContext();
+		ctx.getBeanBox(SlowBean.class).setScope(BeanBoxContext.REQUEST);
+		final BeanBoxContext request = ctx.openScope();
+		final SlowBean[] beans = new SlowBean[4];
+		Thread[] threads = new Thread[beans.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					beans[index] = request.getBean(SlowBean.class);
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		Assert.assertEquals(1, SlowBean.inited.get()); // built once, others waited it
+		for (SlowBean bean : beans)
+			Assert.assertSame(beans[0], bean);
+	}
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.drinkjava2.jbeanbox.annotation.POSTCONSTRUCT;
+
+/**
+ * Singleton should be created only once when many threads get it at same time
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+public class SingletonConcurrencyTest {
+	@Before
+	public void init() {
+		BeanBoxContext.reset();
+	}
+
+	public static class Pool {
+		static AtomicInteger created = new AtomicInteger();
+		static AtomicInteger inited = new AtomicInteger();
+
+		public Pool() {
+			created.incrementAndGet();
+		}
+
+		@POSTCONSTRUCT
+		public void init() throws InterruptedException {
+			Thread.sleep(50); // slow init, other threads come in
+			inited.incrementAndGet();
+		}
+	}
+
+	public static class Service {
+		@Inject
+		public Pool pool;
+	}
+
+	/** Run given task in many threads at same time, return the results */
+	private static Object[] runThreads(int threads, final Runnable... tasks) throws InterruptedException {
+		final Object[] results = new Object[threads];
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			final int index = i;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						tasks[index % tasks.length].run();
+						results[index] = Boolean.TRUE;
+					} catch (Throwable e) {// NOSONAR
+						results[index] = e;
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		Assert.assertTrue("Threads dead locked", done.await(10, TimeUnit.SECONDS));
+		return results;
+	}
+
+	@Test
+	public void createOnceTest() throws InterruptedException {
+		Pool.created.set(0);
+		Pool.inited.set(0);
+		final Object[] pools = new Object[16];
+		final AtomicInteger index = new AtomicInteger();
+		Object[] results = runThreads(16, new Runnable() {
+			@Override
+			public void run() {
+				int i = index.getAndIncrement();
+				pools[i] = i % 2 == 0 ? JBEANBOX.getInstance(Pool.class) : JBEANBOX.getInstance(Service.class).pool;
+			}
+		});
+		for (Object result : results)
+			Assert.assertEquals(Boolean.TRUE, result);
+		Assert.assertEquals(1, Pool.created.get());
+		Assert.assertEquals(1, Pool.inited.get());
+		for (Object pool : pools)
+			Assert.assertSame(pools[0], pool);
+	}
+
+	public static class A {
+		@Inject
+		public B b;
+
+		public A() throws InterruptedException {
+			Thread.sleep(50);
+		}
+	}
+
+	public static class B {
+		@Inject
+		public A a;
+
+		public B() throws InterruptedException {
+			Thread.sleep(50);
+		}
+	}
+
+	/** Field circular dependency built by 2 threads at same time should not dead lock */
+	@Test
+	public void crossThreadCircularTest() throws InterruptedException {
+		Object[] results = runThreads(2, new Runnable() {
+			@Override
+			public void run() {
+				JBEANBOX.getBean(A.class);
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				JBEANBOX.getBean(B.class);
+			}
+		});
+		Assert.assertEquals(Boolean.TRUE, results[0]);
+		Assert.assertEquals(Boolean.TRUE, results[1]);
+		A a = JBEANBOX.getBean(A.class);
+		B b = JBEANBOX.getBean(B.class);
+		Assert.assertSame(a, b.a);
+		Assert.assertSame(b, a.b);
+	}
+
+	public static class Advised {
+		public String hello() {
+			return "Hello";
+		}
+	}
+
+	public static class AdvisedAOP implements MethodInterceptor {
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			return invocation.proceed() + "!";
+		}
+	}
+
+	/** Proxy class of same key generated by many threads at same time should be only one */
+	@Test
+	public void proxyClassConcurrencyTest() throws InterruptedException {
+		final Object[] beans = new Object[16];
+		final AtomicInteger index = new AtomicInteger();
+		Object[] results = runThreads(16, new Runnable() {
+			@Override
+			public void run() {
+				BeanBoxContext ctx = new BeanBoxContext(); // not share proxy Factory
+				beans[index.getAndIncrement()] = ctx.getBean(new BeanBox(Advised.class).addBeanAop(AdvisedAOP.class, "hel*"));
+			}
+		});
+		for (Object result : results)
+			Assert.assertEquals(Boolean.TRUE, result);
+		for (Object bean : beans) {
+			Assert.assertSame(beans[0].getClass(), bean.getClass());
+			Assert.assertEquals("Hello!", ((Advised) bean).hello());
+		}
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.drinkjava2.jbeanbox.annotation.AOP;
+import com.github.drinkjava2.jbeanbox.annotation.INJECT;
+import com.github.drinkjava2.jbeanbox.annotation.POSTCONSTRUCT;
+import com.github.drinkjava2.jbeanbox.annotation.VALUE;
+
+/**
+ * Test BeanBoxContext's saveSnapshot and loadSnapshot methods
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+public class SnapshotTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void init() {
+		BeanBoxContext.reset();
+	}
+
+	public static class Dao {
+	}
+
+	public static class BaseService {
+		@INJECT
+		public Dao baseDao;
+	}
+
+	public static class Service extends BaseService {
+		public Dao dao;
+		public String name;
+		public boolean inited;
+
+		@VALUE("3")
+		public int count;
+
+		@INJECT
+		public Service(Dao dao) {
+			this.dao = dao;
+		}
+
+		@INJECT
+		public void setName(@VALUE("Sam") String name) {
+			this.name = name;
+		}
+
+		@POSTCONSTRUCT
+		public void init() {
+			inited = true;
+		}
+	}
+
+	public static class MyInterceptor implements MethodInterceptor {
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			return invocation.proceed();
+		}
+	}
+
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ ElementType.METHOD })
+	@AOP
+	public static @interface Log {
+		public Class<?> value() default MyInterceptor.class;
+	}
+
+	public static class AopBean {
+		@Log
+		public void doSomething() {// NOSONAR
+		}
+	}
+
+	public static class InstanceAopBean {
+	}
+
+	private File save() throws IOException {
+		BeanBoxContext ctx = new BeanBoxContext();
+		ctx.getBeanBox(Service.class);
+		ctx.getBeanBox(AopBean.class);
+		ctx.getBeanBox(InstanceAopBean.class).addBeanAop(new MyInterceptor(), "*");
+		ctx.bind("dao", Dao.class);
+		File file = folder.newFile("beanbox.snapshot");
+		ctx.saveSnapshot(file);
+		return file;
+	}
+
+	@Test
+	public void loadTest() throws IOException {
+		File file = save();
+		BeanBoxContext ctx = new BeanBoxContext();
+		Assert.assertEquals(2, ctx.loadSnapshot(file));
+		Assert.assertTrue(ctx.getBeanBoxMetaCache().containsKey(Service.class));
+		Assert.assertFalse(ctx.getBeanBoxMetaCache().containsKey(InstanceAopBean.class)); // instance not saved
+
+		BeanBox box = ctx.getBeanBox(Service.class);
+		Assert.assertEquals(Service.class, box.getBeanClass());
+		Assert.assertEquals(2, box.getFieldInjects().size());
+		Assert.assertEquals(1, box.getMethodInjects().size());
+		Assert.assertEquals("init", box.getPostConstruct().getName());
+		Assert.assertEquals(1, ctx.getBeanBox(AopBean.class).getMethodAops().size());
+
+		Service service = ctx.getBean(Service.class);
+		Assert.assertSame(service.dao, ctx.getBean(Dao.class));
+		Assert.assertSame(service.baseDao, service.dao);
+		Assert.assertEquals(3, service.count);
+		Assert.assertEquals("Sam", service.name);
+		Assert.assertTrue(service.inited);
+		Assert.assertSame(service.dao, ctx.getBean("dao"));
+	}
+
+	@Test
+	public void notLoadTest() throws IOException {
+		File file = save();
+		BeanBoxContext ctx = new BeanBoxContext().setAllowSpringJsrAnnotation(false);
+		Assert.assertEquals(0, ctx.loadSnapshot(file)); // built by different setting
+
+		ctx = new BeanBoxContext();
+		BeanBox box = ctx.getBeanBox(Service.class);
+		Assert.assertEquals(1, ctx.loadSnapshot(file)); // existed BeanBox not replaced
+		Assert.assertSame(box, ctx.getBeanBox(Service.class));
+
+		try {
+			new BeanBoxContext().freeze().loadSnapshot(file);
+			Assert.fail("Frozen context can not load");
+		} catch (BeanBoxException e) {// NOSONAR
+		}
+		Assert.assertEquals(2, new BeanBoxContext().openScope().loadSnapshot(file)); // bound on parent
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[] { 1, 2, 3 });
+		} finally {
+			out.close();
+		}
+		Assert.assertEquals(0, new BeanBoxContext().loadSnapshot(file));
+		Assert.assertEquals(0, new BeanBoxContext().loadSnapshot(new File(folder.getRoot(), "notExist")));
+	}
+
+}
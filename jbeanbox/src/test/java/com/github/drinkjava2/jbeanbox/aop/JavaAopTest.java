@@ -13,14 +13,19 @@ package com.github.drinkjava2.jbeanbox.aop;
 
 import static com.github.drinkjava2.jbeanbox.JBEANBOX.value;
 
+import java.lang.reflect.Field;
+
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.github.drinkjava2.cglib3_2_0.proxy.MethodProxy;
+import com.github.drinkjava2.jbeanbox.AopUtils;
 import com.github.drinkjava2.jbeanbox.BeanBox;
 import com.github.drinkjava2.jbeanbox.BeanBoxContext;
+import com.github.drinkjava2.jbeanbox.BeanBoxException;
 import com.github.drinkjava2.jbeanbox.JBEANBOX;
 
 /**
@@ -106,4 +111,205 @@ public class JavaAopTest {
 		Assert.assertEquals("3", demo.email);
 	}
 
+	@Test
+	public void aopChainChangeTest() {
+		AopDemo1 demo = JBEANBOX.getBean(AopDemo1Box.class);
+		demo.setName("--");
+		Assert.assertEquals("1", demo.name);
+		JBEANBOX.bctx().addContextAop(ContextAOP.class, AopDemo1.class, "setNa*"); // cached chain renewed
+		demo.setName("--");
+		Assert.assertEquals("3", demo.name);
+	}
+
+	@Test
+	public void notAdvisedMethodTest() {
+		AopDemo1 demo = JBEANBOX.getBean(AopDemo1Box.class);
+		AopDemo1 demo2 = JBEANBOX.getBean(new AopDemo1Box());
+		Assert.assertNotSame(demo, demo2);
+		Assert.assertSame(demo.getClass(), demo2.getClass()); // proxy class shared by same AOP rules
+
+		JBEANBOX.bctx().addContextAop(ContextAOP.class, AopDemo1.class, "setEm*");
+		demo.setEmail("--");
+		Assert.assertEquals("--", demo.email); // not advised when proxy created, direct call super
+		Assert.assertNotNull(demo.toString());
+	}
+
+	public static class CountAOP implements MethodInterceptor {
+		static int created;
+
+		public CountAOP() {
+			created++;
+		}
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			return invocation.proceed();
+		}
+	}
+
+	public static class CountAOPBox extends BeanBox {
+		{
+			this.setBeanClass(CountAOP.class).setPrototype(true);
+		}
+	}
+
+	@Test
+	public void prototypeAopTest() {
+		CountAOP.created = 0;
+		JBEANBOX.bctx().addContextAop(CountAOPBox.class, AopDemo1.class, "setEm*");
+		AopDemo1 demo = JBEANBOX.getBean(AopDemo1Box.class);
+		demo.setEmail("--");
+		demo.setEmail("--");
+		Assert.assertEquals(1, CountAOP.created); // bound once when chain built
+
+		JBEANBOX.bctx().setPrototypeAopPerCall(true);
+		demo.setEmail("--");
+		demo.setEmail("--");
+		Assert.assertEquals(3, CountAOP.created); // new interceptor for each call
+	}
+
+	public static class RetryAOP implements MethodInterceptor {
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			invocation.proceed();
+			return invocation.proceed();
+		}
+	}
+
+	public static class AppendAOP implements MethodInterceptor {
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			invocation.getArguments()[0] = invocation.getArguments()[0] + "1";
+			return invocation.proceed();
+		}
+	}
+
+	@Test
+	public void proceedAgainTest() {
+		BeanBox box = new BeanBox(AopDemo1.class).addBeanAop(RetryAOP.class, "setName");
+		JBEANBOX.bctx().addContextAop(AppendAOP.class, AopDemo1.class, "setName");
+		AopDemo1 demo = JBEANBOX.getBean(box);
+		demo.setName("-");
+		Assert.assertEquals("-11", demo.name); // AppendAOP called twice
+		demo.setName("-");
+		Assert.assertEquals("-11", demo.name);
+	}
+
+	public static class DeferAOP implements MethodInterceptor {
+		static MethodInvocation saved;
+		static MethodInvocation raw;
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			saved = AopUtils.copyInvocation(invocation);
+			raw = invocation;
+			return null;
+		}
+	}
+
+	@Test
+	public void deferredProceedTest() throws Throwable {
+		BeanBox box = new BeanBox(AopDemo1.class).addBeanAop(AppendAOP.class, "setName")
+				.addBeanAop(DeferAOP.class, "setName");
+		JBEANBOX.bctx().addContextAop(AppendAOP.class, AopDemo1.class, "setName");
+		AopDemo1 demo = JBEANBOX.getBean(box);
+		demo.setName("-");
+		Assert.assertNull(demo.name); // not proceeded yet
+		DeferAOP.saved.proceed(); // proceed after all interceptors returned
+		Assert.assertEquals("-11", demo.name); // each AppendAOP called once
+		try {
+			DeferAOP.raw.proceed();
+			Assert.fail("Invocation is reused in call, can not be kept");
+		} catch (BeanBoxException e) {// NOSONAR
+		}
+	}
+
+	public static interface Hello {
+		String hello(String name);
+	}
+
+	public static class HelloImpl implements Hello {
+		static int created;
+
+		public HelloImpl() {
+			created++;
+		}
+
+		@Override
+		public final String hello(String name) {
+			return "Hello " + name;
+		}
+	}
+
+	@Test
+	public void interfaceProxyTest() {
+		HelloImpl.created = 0;
+		BeanBox box = new BeanBox(HelloImpl.class).setSingleton(true).addBeanAop(MethodAOP.class, "hel*")
+				.setProxyInterfaces(Hello.class);
+		Hello hello = JBEANBOX.getBean(box);
+		Assert.assertTrue(java.lang.reflect.Proxy.isProxyClass(hello.getClass()));
+		Assert.assertEquals("Hello 1", hello.hello("Tom")); // final method advised
+		Assert.assertEquals(1, HelloImpl.created); // target created only once
+		Assert.assertSame(hello, JBEANBOX.getBean(box));
+
+		JBEANBOX.bctx().addContextAop(AppendAOP.class, HelloImpl.class, "hel*");
+		Assert.assertEquals("Hello 11", hello.hello("Tom"));
+	}
+
+	public static class RunnableHello extends HelloImpl implements Runnable {
+		@Override
+		public void run() {// NOSONAR
+		}
+	}
+
+	@Test
+	public void jdkInterfaceFirstTest() {
+		BeanBox box = new BeanBox(RunnableHello.class).addBeanAop(MethodAOP.class, "hel*")
+				.setProxyInterfaces(Runnable.class, Hello.class);
+		Object proxy = JBEANBOX.getBean(box);
+		Assert.assertTrue(proxy instanceof Runnable);
+		Assert.assertEquals("Hello 1", ((Hello) proxy).hello("Tom"));
+	}
+
+	@Test
+	public void prototypeProxyTest() {
+		CountAOP.created = 0;
+		JBEANBOX.bctx().addContextAop(CountAOPBox.class, AopDemo1.class, "setEm*");
+		BeanBox box = new AopDemo1Box().setSingleton(false);
+		AopDemo1 demo1 = JBEANBOX.getBean(box);
+		AopDemo1 demo2 = JBEANBOX.getBean(box); // created by cached proxy class
+		Assert.assertNotSame(demo1, demo2);
+		Assert.assertSame(demo1.getClass(), demo2.getClass());
+		Assert.assertEquals("0", demo2.name);
+		demo2.setName("--");
+		Assert.assertEquals("1", demo2.name);
+		Assert.assertEquals("0", demo1.name);
+		demo1.setEmail("--");
+		demo2.setEmail("--");
+		Assert.assertEquals(1, CountAOP.created); // chain shared by proxy beans of same box
+	}
+
+	public static class EagerDemo {
+		public String hello() {
+			return "Hello";
+		}
+	}
+
+	@Test
+	public void eagerMethodProxyTest() throws Exception {
+		JBEANBOX.bctx().setEagerMethodProxy(true);
+		EagerDemo demo = JBEANBOX.getBean(new BeanBox(EagerDemo.class).addBeanAop(CountAOP.class, "hel*"));
+		Field fastClassInfo = MethodProxy.class.getDeclaredField("fastClassInfo");
+		fastClassInfo.setAccessible(true);
+		int found = 0;
+		for (Field f : demo.getClass().getDeclaredFields())
+			if (f.getType() == MethodProxy.class) {
+				f.setAccessible(true);
+				Assert.assertNotNull(fastClassInfo.get(f.get(null))); // FastClasses generated before first call
+				found++;
+			}
+		Assert.assertTrue(found > 0);
+		Assert.assertEquals("Hello", demo.hello());
+	}
+
 }
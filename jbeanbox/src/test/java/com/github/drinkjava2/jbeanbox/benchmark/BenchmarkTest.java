@@ -38,6 +38,7 @@ public class BenchmarkTest {
 	private void runTestMethods() throws Exception {
 		runMethod("testAnnotationSingleton");
 		runMethod("testAnnotationPrototype");
+		runMethod("testAnnotationPrototypeBytecode");
 		runMethod("testConstructInjectSingleTon");
 		runMethod("testConstructInjectPrototype");
 		runMethod("testCreateMethodSingleton");
@@ -71,6 +72,15 @@ public class BenchmarkTest {
 			JBEANBOX.getBean(A.class);
 	}
 
+	@Test
+	public void testAnnotationPrototypeBytecode() {
+		BeanBoxContext.reset();
+		BeanBoxContext ctx = new BeanBoxContext().setAllowBytecodeFactory(true);
+		ctx.getBeanBox(A.class).setPrototype(true);
+		for (int i = 0; i < REPEAT_TIMES; i++)
+			ctx.getBean(A.class);
+	}
+
 	@Test
 	public void testConstructInjectSingleTon() {
 		BeanBoxContext.reset();
@@ -0,0 +1,63 @@
+package com.github.drinkjava2.jbeanbox.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.github.drinkjava2.jbeanbox.BeanBoxContext;
+import com.github.drinkjava2.jbeanbox.JBEANBOX;
+import com.github.drinkjava2.jbeanbox.benchmark.objects.A;
+
+/**
+ * Singleton lookup throughput test under 1, 8 and 32 threads
+ *
+ * @since 2.5.0
+ */
+public class SingletonSpeedTest {
+	static int REPEAT_TIMES = 5000; // per thread, change to 5000000 to do real test
+
+	@Test
+	public void speedTest() throws Exception {
+		BeanBoxContext.reset();
+		JBEANBOX.getBeanBox(A.class).setSingleton(true);
+		final A a = JBEANBOX.getBean(A.class);
+		runThreads(1, a, 100); // warm up
+		System.out.println("Singleton lookup test for repeat " + REPEAT_TIMES + " times per thread:");
+		for (int threads : new int[] { 1, 8, 32 }) {
+			long start = System.nanoTime();
+			runThreads(threads, a, REPEAT_TIMES);
+			long used = System.nanoTime() - start;
+			long total = (long) threads * REPEAT_TIMES;
+			System.out.println(String.format("%35s: %6s ms, %10d lookups/ms", threads + " threads",
+					used / 1000000.0, total * 1000000 / Math.max(used, 1)));
+		}
+	}
+
+	private static void runThreads(int threads, final A expected, final int repeat) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger wrong = new AtomicInteger();
+		for (int t = 0; t < threads; t++)
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < repeat; i++)
+							if (JBEANBOX.getBean(A.class) != expected)
+								wrong.incrementAndGet();
+					} catch (InterruptedException e) {// NOSONAR
+						wrong.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		start.countDown();
+		done.await();
+		Assert.assertEquals(0, wrong.get());
+	}
+
+}
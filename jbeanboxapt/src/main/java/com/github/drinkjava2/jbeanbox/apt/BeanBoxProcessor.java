@@ -0,0 +1,583 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox.apt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * BeanBoxProcessor read jBeanBox, JSR and Spring annotations at compile time,
+ * for each annotated class generate a BeanBox subclass named
+ * "ClassName$$BeanBox" in same package, it configure the BeanBox by Java config
+ * methods and create bean by a create(Caller) method, and write them into index
+ * file "META-INF/jbeanbox/beanbox.index". Set
+ * BeanBoxContext.setAllowGeneratedBeanBox(true) to use them instead of reading
+ * annotations by reflection at runtime.
+ *
+ * If a class can not be translated exactly (for example private types,
+ * overridden annotated methods or shadowed fields), no BeanBox generated for
+ * it, it still use reflection at runtime.
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+@SupportedAnnotationTypes("*")
+public class BeanBoxProcessor extends AbstractProcessor {
+	public static final String INDEX_FILE = "META-INF/jbeanbox/beanbox.index";
+	public static final String SUFFIX = "$$BeanBox";
+	static final String JSR_FLAG = "jsr";
+
+	private static final String PKG = "com.github.drinkjava2.jbeanbox";
+	private static final String BEANBOX = PKG + ".BeanBox";
+	private static final String EMPTY = PKG + ".EMPTY";
+	private static final String JBEANBOX = PKG + ".JBEANBOX";
+	private static final String CALLER = PKG + ".Caller";
+	private static final String INJECT = PKG + ".annotation.INJECT";
+	private static final String VALUE = PKG + ".annotation.VALUE";
+	private static final String AOP = PKG + ".annotation.AOP";
+	private static final String PROTOTYPE = PKG + ".annotation.PROTOTYPE";
+	private static final String POSTCONSTRUCT = PKG + ".annotation.POSTCONSTRUCT";
+	private static final String PREDESTROY = PKG + ".annotation.PREDESTROY";
+	private static final String JSR_INJECT = "javax.inject.Inject";
+	private static final String JSR_POSTCONSTRUCT = "javax.annotation.PostConstruct";
+	private static final String JSR_PREDESTROY = "javax.annotation.PreDestroy";
+	private static final String AUTOWIRED = "org.springframework.beans.factory.annotation.Autowired";
+	private static final String SCOPE = "org.springframework.context.annotation.Scope";
+
+	private final Map<String, String> index = new LinkedHashMap<String, String>(); // as title
+	private final Set<String> scanned = new HashSet<String>(); // binary names of classes scanned
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		if (roundEnv.processingOver()) {
+			writeIndex();
+			return false;
+		}
+		for (Element e : roundEnv.getRootElements())
+			scanType(e);
+		return false; // do not claim annotations, other processors can use them
+	}
+
+	/** Generate BeanBox for given type and its static nested classes */
+	private void scanType(Element e) {
+		if (!(e instanceof TypeElement))
+			return;
+		TypeElement type = (TypeElement) e;
+		scanned.add(processingEnv.getElementUtils().getBinaryName(type).toString());
+		if (type.getKind() == ElementKind.CLASS && !type.getModifiers().contains(Modifier.ABSTRACT)
+				&& !type.getQualifiedName().toString().endsWith(SUFFIX) && !isBeanBox(type)) {
+			Gen gen = new Gen(type);
+			gen.build();
+			if (gen.annotated && !gen.unsupported)
+				gen.write();
+		}
+		for (Element inner : type.getEnclosedElements())
+			if (inner.getKind() == ElementKind.CLASS && inner.getModifiers().contains(Modifier.STATIC))
+				scanType(inner);
+	}
+
+	private boolean isBeanBox(TypeElement type) {
+		TypeElement beanBox = processingEnv.getElementUtils().getTypeElement(BEANBOX);
+		return beanBox != null
+				&& processingEnv.getTypeUtils().isSubtype(type.asType(), processingEnv.getTypeUtils().erasure(beanBox.asType()));
+	}
+
+	/**
+	 * Write index file, entries of previous compile are kept if their classes not
+	 * scanned in this compile and still exist, so incremental compile not lose them
+	 */
+	private void writeIndex() {
+		Map<String, String> old = readIndex();
+		if (index.isEmpty() && old == null)
+			return;
+		Map<String, String> merged = new LinkedHashMap<String, String>();
+		if (old != null)
+			for (Entry<String, String> entry : old.entrySet())
+				if (!scanned.contains(entry.getKey())
+						&& processingEnv.getElementUtils().getTypeElement(entry.getKey().replace('$', '.')) != null)
+					merged.put(entry.getKey(), entry.getValue());
+		merged.putAll(index);
+		try {
+			FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX_FILE);
+			Writer w = file.openWriter();
+			try {
+				for (Entry<String, String> entry : merged.entrySet())
+					w.write(entry.getKey() + "=" + entry.getValue() + "\n");
+			} finally {
+				w.close();
+			}
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Kind.ERROR, "Fail to write " + INDEX_FILE + ": " + e.getMessage());
+		}
+	}
+
+	/** Read index file left by previous compile, return null if not found */
+	private Map<String, String> readIndex() {
+		try {
+			FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX_FILE);
+			Map<String, String> result = new LinkedHashMap<String, String>();
+			for (String line : file.getCharContent(true).toString().split("\n")) {
+				int pos = line.indexOf('=');
+				if (pos > 0)
+					result.put(line.substring(0, pos).trim(), line.substring(pos + 1).trim());
+			}
+			return result;
+		} catch (IOException e) {// NOSONAR, no index file yet
+			return null;
+		} catch (IllegalArgumentException e) {// NOSONAR, some Filer not support reading
+			return null;
+		}
+	}
+
+	protected void belowAreInnerClasses__________________________() {// NOSONAR
+	}
+
+	/** An inject annotation translated to source code */
+	static class Inject {
+		String target; // source code of target, like "Foo.class" or "\"abc\""
+		boolean emptyTarget;
+		boolean value; // is @VALUE
+		boolean pureValue;
+		boolean required = true;
+
+		String toBox() {
+			return JBEANBOX + (value ? ".value(" : ".inject(") + target + ", " + pureValue + ", " + required + ")";
+		}
+	}
+
+	/** Generator of one BeanBox class */
+	class Gen {
+		final TypeElement type;
+		final PackageElement pkg;
+		final String beanClass;
+		final List<String> configs = new ArrayList<String>(); // lines in initializer
+		String createBody; // body of create method, null if not create method
+		boolean annotated; // found any annotation need generate BeanBox
+		boolean unsupported; // can not generate exactly, use reflection
+		boolean jsr; // used JSR or Spring annotation
+
+		Gen(TypeElement type) {
+			this.type = type;
+			this.pkg = processingEnv.getElementUtils().getPackageOf(type);
+			this.beanClass = className(type);
+		}
+
+		void build() {// NOSONAR
+			if (!isAccessible(type)) {
+				unsupported = true;
+				return;
+			}
+			configs.add("setBeanClass(" + beanClass + ".class);");
+
+			// ========= singleton or prototype
+			List<? extends AnnotationMirror> annos = processingEnv.getElementUtils().getAllAnnotationMirrors(type);
+			Boolean singleton = Boolean.TRUE;
+			String scopeName = null;
+			if (find(annos, PROTOTYPE) != null) {
+				annotated = true;
+				singleton = Boolean.FALSE;
+			} else {
+				AnnotationMirror scope = find(annos, SCOPE);
+				if (scope != null) {
+					annotated = true;
+					jsr = true;
+					Object v = values(scope).get("value");
+					if (v != null && "prototype".equalsIgnoreCase(String.valueOf(v)))
+						singleton = Boolean.FALSE;
+					else if (v != null && !"singleton".equalsIgnoreCase(String.valueOf(v))
+							&& String.valueOf(v).length() > 0) {
+						singleton = Boolean.FALSE;
+						scopeName = String.valueOf(v); // request, session or custom scope
+					}
+				}
+			}
+			configs.add("setSingleton(" + singleton + ");");
+			if (scopeName != null)
+				configs.add("setScope(" + literal(scopeName) + ");");
+
+			// ======== Class inject
+			Inject classInject = getInject(annos);
+			if (classInject != null)
+				configs.add("setTarget(" + classInject.target + ");setPureValue(" + classInject.pureValue
+						+ ");setRequired(" + classInject.required + ");");
+
+			// ======== AOP annotated annotations on class
+			for (AnnotationMirror anno : annos)
+				if (isAop(anno)) {
+					annotated = true;
+					Map<String, Object> v = values(anno);
+					Object aop = v.get("value");
+					Object method = v.get("method");
+					if (method != null && String.valueOf(method).length() > 0 && aop != null)
+						configs.add("addBeanAop(" + literal(aop) + ", " + literal(method) + ");");
+				}
+
+			buildConstructor();
+			buildFields();
+			buildMethods();
+		}
+
+		private void buildConstructor() {// NOSONAR
+			ExecutableElement injectConstr = null;
+			List<String> paramTypes = new ArrayList<String>();
+			List<String> paramBoxes = new ArrayList<String>();
+			boolean noArgConstr = false;
+			for (Element e : type.getEnclosedElements()) {
+				if (e.getKind() != ElementKind.CONSTRUCTOR)
+					continue;
+				ExecutableElement constr = (ExecutableElement) e;
+				if (constr.getParameters().isEmpty() && !constr.getModifiers().contains(Modifier.PRIVATE))
+					noArgConstr = true;
+				if (!constr.getModifiers().contains(Modifier.PUBLIC))
+					continue; // only public constructors be used
+				Inject v = getInject(constr.getAnnotationMirrors());
+				if (v == null)
+					continue;
+				injectConstr = constr;
+				paramTypes.clear();
+				paramBoxes.clear();
+				params(constr, v, paramTypes, paramBoxes);
+			}
+			if (injectConstr == null) {
+				if (noArgConstr)
+					createBody = "return new " + beanClass + "();";
+				return;
+			}
+			StringBuilder sb = new StringBuilder("injectConstruct(" + beanClass + ".class");
+			for (String t : paramTypes)
+				sb.append(", ").append(t);
+			for (String b : paramBoxes)
+				sb.append(", ").append(b);
+			configs.add(sb.append(");").toString());
+
+			sb = new StringBuilder("return new " + beanClass + "(");
+			List<? extends VariableElement> params = injectConstr.getParameters();
+			for (int i = 0; i < params.size(); i++) {
+				if (i > 0)
+					sb.append(", ");
+				sb.append("(").append(castType(params.get(i).asType())).append(") caller.getParam(getConstructorParams()[")
+						.append(i).append("])");
+			}
+			createBody = sb.append(");").toString();
+		}
+
+		private void buildFields() {
+			Set<String> names = new HashSet<String>();
+			Set<String> shadowed = new HashSet<String>();
+			for (TypeElement t = type; t != null; t = superClass(t))
+				for (Element e : t.getEnclosedElements())
+					if (e.getKind() == ElementKind.FIELD && !names.add(e.getSimpleName().toString()))
+						shadowed.add(e.getSimpleName().toString());
+			for (TypeElement t = type; t != null; t = superClass(t))
+				for (Element e : t.getEnclosedElements()) {
+					if (e.getKind() != ElementKind.FIELD)
+						continue;
+					Inject v = getInject(e.getAnnotationMirrors());
+					if (v == null)
+						continue;
+					String name = e.getSimpleName().toString();
+					if (shadowed.contains(name))
+						unsupported = true; // injectField can not find shadowed field by name
+					configs.add("injectField(\"" + name + "\", " + v.toBox() + ");");
+				}
+		}
+
+		private void buildMethods() {// NOSONAR
+			Set<String> signatures = new HashSet<String>();
+			Set<String> annotatedSignatures = new HashSet<String>();
+			int postConstructs = 0;
+			int preDestroys = 0;
+			for (TypeElement t = type; t != null; t = superClass(t))
+				for (Element e : t.getEnclosedElements()) {
+					if (e.getKind() != ElementKind.METHOD)
+						continue;
+					ExecutableElement m = (ExecutableElement) e;
+					String name = m.getSimpleName().toString();
+					List<String> types = new ArrayList<String>();
+					for (VariableElement p : m.getParameters())
+						types.add(classLiteral(p.asType()));
+					String signature = name + types;
+					boolean overridden = !signatures.add(signature);
+					List<? extends AnnotationMirror> annos = m.getAnnotationMirrors();
+					boolean used = false;
+					String typeArgs = types.isEmpty() ? "" : ", " + join(types);
+
+					// ========== @PostConstruct and @PreDestory
+					if (find(annos, POSTCONSTRUCT) != null || find(annos, JSR_POSTCONSTRUCT) != null) {
+						used = true;
+						postConstructs++;
+						if (!types.isEmpty())
+							unsupported = true; // reflection will throw exception
+						configs.add("setPostConstruct(\"" + name + "\");");
+					}
+					if (find(annos, PREDESTROY) != null || find(annos, JSR_PREDESTROY) != null) {
+						used = true;
+						preDestroys++;
+						if (!types.isEmpty())
+							unsupported = true;
+						configs.add("setPreDestroy(\"" + name + "\");");
+					}
+
+					// ========== AOP about annotation =========
+					for (AnnotationMirror anno : annos)
+						if (isAop(anno)) {
+							used = true;
+							Object aop = values(anno).get("value");
+							if (aop != null)
+								configs.add("addMethodAop(" + literal(aop) + ", \"" + name + "\"" + typeArgs + ");");
+						}
+
+					// =========== method inject annotation ==============
+					Inject v = getInject(annos);
+					if (v != null) {
+						used = true;
+						List<String> paramTypes = new ArrayList<String>();
+						List<String> paramBoxes = new ArrayList<String>();
+						params(m, v, paramTypes, paramBoxes);
+						List<String> args = new ArrayList<String>(paramTypes);
+						args.addAll(paramBoxes);
+						configs.add("injectMethod(\"" + name + "\"" + (args.isEmpty() ? "" : ", " + join(args)) + ");");
+					}
+					if (used) {
+						annotated = true;
+						annotatedSignatures.add(signature);
+						if (overridden)
+							unsupported = true; // reflection find both methods, but by name only find one
+					} else if (annotatedSignatures.contains(signature))
+						unsupported = true;
+				}
+			if (postConstructs > 1 || preDestroys > 1)
+				unsupported = true;
+		}
+
+		/** Translate parameters of constructor or method to types and BeanBoxes */
+		private void params(ExecutableElement e, Inject v, List<String> types, List<String> boxes) {
+			List<? extends VariableElement> params = e.getParameters();
+			if (!v.emptyTarget) { // 1 parameter only
+				if (params.isEmpty()) {
+					unsupported = true; // reflection will throw exception
+					return;
+				}
+				types.add(classLiteral(params.get(0).asType()));
+				boxes.add(v.toBox());
+				return;
+			}
+			for (VariableElement p : params) { // no or many parameter
+				String t = classLiteral(p.asType());
+				types.add(t);
+				Inject pv = getInject(p.getAnnotationMirrors());
+				boxes.add(pv != null ? pv.toBox() : JBEANBOX + ".inject(" + t + ")");
+			}
+		}
+
+		/** Get @INJECT, @VALUE, @Inject or @Autowired annotation, null if not found */
+		private Inject getInject(List<? extends AnnotationMirror> annos) {
+			for (AnnotationMirror a : annos) {
+				String name = annoName(a);
+				Inject v = null;
+				if (INJECT.equals(name) || VALUE.equals(name)) {
+					Map<String, Object> values = values(a);
+					v = new Inject();
+					v.value = VALUE.equals(name);
+					Object target = values.get("value");
+					v.emptyTarget = !v.value && (target instanceof DeclaredType)
+							&& EMPTY.equals(className(((DeclaredType) target).asElement()));
+					v.target = literal(target);
+					v.pureValue = Boolean.TRUE.equals(values.get("pureValue"));
+					v.required = !Boolean.FALSE.equals(values.get("required"));
+				} else if (JSR_INJECT.equals(name) || AUTOWIRED.equals(name)) {
+					jsr = true;
+					v = new Inject();
+					v.target = EMPTY + ".class";
+					v.emptyTarget = true;
+					v.required = !Boolean.FALSE.equals(values(a).get("required"));
+				}
+				if (v != null) {
+					annotated = true;
+					return v;
+				}
+			}
+			return null;
+		}
+
+		private boolean isAop(AnnotationMirror anno) {
+			return find(anno.getAnnotationType().asElement().getAnnotationMirrors(), AOP) != null;
+		}
+
+		/** Annotation values include default values, class values be TypeMirror */
+		private Map<String, Object> values(AnnotationMirror a) {
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			for (Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : processingEnv
+					.getElementUtils().getElementValuesWithDefaults(a).entrySet())
+				result.put(entry.getKey().getSimpleName().toString(), entry.getValue().getValue());
+			return result;
+		}
+
+		/** Source code of a annotation value */
+		private String literal(Object value) {
+			if (value instanceof TypeMirror)
+				return classLiteral((TypeMirror) value);
+			if (value instanceof List || value instanceof AnnotationMirror || value instanceof VariableElement) {
+				unsupported = true; // arrays, annotations and enums not supported
+				return "null";
+			}
+			return processingEnv.getElementUtils().getConstantExpression(value);
+		}
+
+		private String classLiteral(TypeMirror t) {
+			return typeName(processingEnv.getTypeUtils().erasure(t)) + ".class";
+		}
+
+		/** Erased type name can be used in source code */
+		private String castType(TypeMirror t) {
+			TypeMirror erased = processingEnv.getTypeUtils().erasure(t);
+			if (erased.getKind().isPrimitive())
+				return processingEnv.getTypeUtils().boxedClass((PrimitiveType) erased)
+						.getQualifiedName().toString();
+			return typeName(erased);
+		}
+
+		private String typeName(TypeMirror t) {
+			if (t.getKind().isPrimitive())
+				return t.toString();
+			if (t.getKind() == TypeKind.ARRAY)
+				return typeName(((ArrayType) t).getComponentType()) + "[]";
+			if (t.getKind() == TypeKind.DECLARED) {
+				TypeElement e = (TypeElement) ((DeclaredType) t).asElement();
+				if (!isAccessible(e))
+					unsupported = true;
+				return className(e);
+			}
+			unsupported = true;
+			return "Object";
+		}
+
+		/** Check if a type can be used in source code of same package */
+		private boolean isAccessible(TypeElement e) {
+			boolean samePackage = processingEnv.getElementUtils().getPackageOf(e).equals(pkg);
+			for (Element t = e; t instanceof TypeElement; t = t.getEnclosingElement()) {
+				Set<Modifier> mod = t.getModifiers();
+				if (mod.contains(Modifier.PRIVATE) || !samePackage && !mod.contains(Modifier.PUBLIC))
+					return false;
+			}
+			return true;
+		}
+
+		void write() {
+			String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+			String pkgName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+			String simpleName = (pkgName.length() == 0 ? binaryName : binaryName.substring(pkgName.length() + 1))
+					+ SUFFIX;
+			String genName = pkgName.length() == 0 ? simpleName : pkgName + "." + simpleName;
+			StringBuilder sb = new StringBuilder();
+			if (pkgName.length() > 0)
+				sb.append("package ").append(pkgName).append(";\n\n");
+			sb.append("/** Generated by jBeanBox annotation processor for ").append(beanClass).append(", do not edit */\n");
+			sb.append("@SuppressWarnings({ \"rawtypes\", \"unchecked\" })\n");
+			sb.append("public class ").append(simpleName).append(" extends ").append(BEANBOX).append(" {\n");
+			sb.append("\t{\n");
+			for (String line : configs)
+				sb.append("\t\t").append(line).append('\n');
+			sb.append("\t}\n");
+			if (createBody != null) {
+				sb.append("\n\tpublic ").append(beanClass).append(" create(").append(CALLER).append(" caller) {\n");
+				sb.append("\t\t").append(createBody).append('\n');
+				sb.append("\t}\n");
+			}
+			sb.append("}\n");
+			try {
+				JavaFileObject file = processingEnv.getFiler().createSourceFile(genName, type);
+				Writer w = file.openWriter();
+				try {
+					w.write(sb.toString());
+				} finally {
+					w.close();
+				}
+			} catch (IOException e) {
+				processingEnv.getMessager().printMessage(Kind.ERROR, "Fail to generate " + genName + ": " + e.getMessage(),
+						type);
+				return;
+			}
+			index.put(binaryName, jsr ? genName + "," + JSR_FLAG : genName);
+		}
+	}
+
+	protected void belowAreStaticMethods__________________________() {// NOSONAR
+	}
+
+	private static AnnotationMirror find(List<? extends AnnotationMirror> annos, String name) {
+		for (AnnotationMirror a : annos)
+			if (name.equals(annoName(a)))
+				return a;
+		return null;
+	}
+
+	private static String annoName(AnnotationMirror a) {
+		return className(a.getAnnotationType().asElement());
+	}
+
+	private static String className(Element e) {
+		return ((TypeElement) e).getQualifiedName().toString();
+	}
+
+	private static TypeElement superClass(TypeElement t) {
+		TypeMirror s = t.getSuperclass();
+		if (s.getKind() != TypeKind.DECLARED)
+			return null;
+		TypeElement e = (TypeElement) ((DeclaredType) s).asElement();
+		return "java.lang.Object".equals(e.getQualifiedName().toString()) ? null : e;
+	}
+
+	private static String join(List<String> items) {
+		StringBuilder sb = new StringBuilder();
+		for (String item : items) {
+			if (sb.length() > 0)
+				sb.append(", ");
+			sb.append(item);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox.apt;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.github.drinkjava2.jbeanbox.BeanBox;
+import com.github.drinkjava2.jbeanbox.BeanBoxContext;
+
+/**
+ * Compile a demo source with BeanBoxProcessor, then use generated BeanBoxes
+ *
+ * @author Yong Zhu
+ * @since 2.5.0
+ */
+public class BeanBoxProcessorTest {
+	static final String SOURCE = "" //
+			+ "package demo;\n" //
+			+ "import javax.inject.Inject;\n" //
+			+ "import com.github.drinkjava2.jbeanbox.annotation.*;\n" //
+			+ "public class Demo {\n" //
+			+ "  public static class Dao {}\n" //
+			+ "  @PROTOTYPE public static class Proto {}\n" //
+			+ "  public static class Service {\n" //
+			+ "    public Dao dao; public int port; public String name; public boolean inited;\n" //
+			+ "    @INJECT public Proto proto;\n" //
+			+ "    @INJECT public Service(Dao dao, @VALUE(\"8080\") int port) { this.dao = dao; this.port = port; }\n" //
+			+ "    @INJECT public void setName(@VALUE(\"Sam\") String name) { this.name = name; }\n" //
+			+ "    @POSTCONSTRUCT public void init() { inited = true; }\n" //
+			+ "  }\n" //
+			+ "  public static class JsrService { @Inject private Dao dao; public Dao getDao() { return dao; } }\n" //
+			+ "  public static class Base { @INJECT Dao dao; }\n" //
+			+ "  public static class Shadow extends Base { @INJECT Dao dao; }\n" //
+			+ "}\n";
+
+	static final String EXTRA = "" //
+			+ "package demo;\n" //
+			+ "public class Extra { @com.github.drinkjava2.jbeanbox.annotation.INJECT public Demo.Dao dao; }\n";
+
+	static File dir;
+	static File output;
+	static ClassLoader loader;
+	static List<File> testDirs = new ArrayList<File>();
+
+	@BeforeClass
+	public static void compile() throws Exception {
+		Assume.assumeNotNull(ToolProvider.getSystemJavaCompiler());
+		dir = newTempDir();
+		output = new File(dir, "classes");
+		Assert.assertEquals(0, compile(dir, "Demo", SOURCE));
+		loader = new URLClassLoader(new URL[] { output.toURI().toURL() }, BeanBoxProcessorTest.class.getClassLoader());
+	}
+
+	@AfterClass
+	public static void cleanUp() {
+		delete(dir);
+	}
+
+	@After
+	public void cleanTestDirs() {
+		for (File f : testDirs)
+			delete(f);
+		testDirs.clear();
+	}
+
+	static File newTempDir() {
+		return new File(System.getProperty("java.io.tmpdir"), "jbeanboxapt" + System.nanoTime());
+	}
+
+	/** Compile a demo source into dir/classes with BeanBoxProcessor */
+	static int compile(File dir, String className, String source) throws Exception {
+		File src = new File(dir, "src/demo/" + className + ".java");
+		File classes = new File(dir, "classes");
+		src.getParentFile().mkdirs();
+		classes.mkdirs();
+		OutputStream out = new FileOutputStream(src);
+		try {
+			out.write(source.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		String cp = new File(BeanBox.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath()
+				+ File.pathSeparator + classes.getPath();
+		return ToolProvider.getSystemJavaCompiler().run(null, null, null, "-classpath", cp, "-d", classes.getPath(),
+				"-processor", BeanBoxProcessor.class.getName(), src.getPath());
+	}
+
+	static Properties loadIndex(File classes) throws Exception {
+		Properties index = new Properties();
+		InputStream in = new FileInputStream(new File(classes, BeanBoxProcessor.INDEX_FILE));
+		try {
+			index.load(in);
+		} finally {
+			in.close();
+		}
+		return index;
+	}
+
+	static void delete(File f) {
+		if (f == null)
+			return;
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		f.delete();// NOSONAR
+	}
+
+	@Test
+	public void indexTest() throws Exception {
+		Properties index = loadIndex(output);
+		Assert.assertEquals("demo.Demo$Service$$BeanBox", index.getProperty("demo.Demo$Service"));
+		Assert.assertEquals("demo.Demo$Proto$$BeanBox", index.getProperty("demo.Demo$Proto"));
+		Assert.assertEquals("demo.Demo$JsrService$$BeanBox,jsr", index.getProperty("demo.Demo$JsrService"));
+		Assert.assertNull(index.getProperty("demo.Demo$Dao")); // no annotation
+		Assert.assertNull(index.getProperty("demo.Demo$Shadow")); // shadowed field use reflection
+		Assert.assertEquals("demo.Demo$Base$$BeanBox", index.getProperty("demo.Demo$Base"));
+		Assert.assertEquals(4, index.size());
+	}
+
+	@Test
+	public void incrementalIndexTest() throws Exception {
+		File tmp = newTempDir();
+		testDirs.add(tmp);
+		File classes = new File(tmp, "classes");
+		Assert.assertEquals(0, compile(tmp, "Demo", SOURCE));
+		Assert.assertEquals(0, compile(tmp, "Extra", EXTRA)); // only Extra compiled
+		Properties index = loadIndex(classes);
+		Assert.assertEquals("demo.Extra$$BeanBox", index.getProperty("demo.Extra"));
+		Assert.assertEquals("demo.Demo$Service$$BeanBox", index.getProperty("demo.Demo$Service"));
+		Assert.assertEquals(5, index.size());
+
+		Assert.assertEquals(0, compile(tmp, "Extra", "package demo; public class Extra {}")); // annotation removed
+		index = loadIndex(classes);
+		Assert.assertNull(index.getProperty("demo.Extra"));
+		Assert.assertEquals(4, index.size());
+	}
+
+	@Test
+	public void generatedBeanBoxTest() throws Exception {
+		Class<?> service = loader.loadClass("demo.Demo$Service");
+		BeanBoxContext ctx = new BeanBoxContext().setAllowGeneratedBeanBox(true);
+		BeanBox box = ctx.getBeanBox(service);
+		Assert.assertEquals("demo.Demo$Service$$BeanBox", box.getClass().getName());
+		Assert.assertNotNull(box.getCreateMethod());
+
+		Object bean = ctx.getBean(service);
+		Assert.assertSame(bean, ctx.getBean(service));
+		Assert.assertSame(ctx.getBean(loader.loadClass("demo.Demo$Dao")), service.getField("dao").get(bean));
+		Assert.assertEquals(8080, service.getField("port").get(bean));
+		Assert.assertEquals("Sam", service.getField("name").get(bean));
+		Assert.assertEquals(true, service.getField("inited").get(bean));
+		Object proto = service.getField("proto").get(bean);
+		Assert.assertNotNull(proto);
+		Assert.assertNotSame(proto, ctx.getBean(proto.getClass()));
+
+		Class<?> shadow = loader.loadClass("demo.Demo$Shadow");
+		Assert.assertEquals(BeanBox.class, ctx.getBeanBox(shadow).getClass());
+		Assert.assertNotNull(ctx.getBean(shadow));
+	}
+
+	@Test
+	public void jsrTest() throws Exception {
+		Class<?> jsrService = loader.loadClass("demo.Demo$JsrService");
+		BeanBoxContext ctx = new BeanBoxContext().setAllowGeneratedBeanBox(true);
+		Object bean = ctx.getBean(jsrService);
+		Assert.assertEquals("demo.Demo$JsrService$$BeanBox", ctx.getBeanBox(jsrService).getClass().getName());
+		Assert.assertNotNull(jsrService.getMethod("getDao").invoke(bean));
+
+		ctx = new BeanBoxContext().setAllowGeneratedBeanBox(true).setAllowSpringJsrAnnotation(false);
+		Assert.assertEquals(BeanBox.class, ctx.getBeanBox(jsrService).getClass());
+
+		ctx = new BeanBoxContext(); // generated BeanBox not allowed by default
+		Assert.assertEquals(BeanBox.class, ctx.getBeanBox(jsrService).getClass());
+	}
+
+}
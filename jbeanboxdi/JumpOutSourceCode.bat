@@ -4,9 +4,11 @@ XCOPY "..\jbeanbox\src\main\java\com\github\drinkjava2\jbeanbox\*.*" ".\src\main
 XCOPY "..\jbeanbox\src\test\*.*" ".\src\test\" /S /D /Y
 del ".\src\test\java\com\github\drinkjava2\jbeanbox\aop\*.java"
 rd ".\src\test\java\com\github\drinkjava2\jbeanbox\aop"
+del ".\src\test\java\com\github\drinkjava2\jbeanbox\BytecodeFactoryTest.java"
 
 del ".\src\main\java\com\github\drinkjava2\jbeanbox\AopUtils.java"
 del ".\src\main\java\com\github\drinkjava2\jbeanbox\ProxyBean.java" 
+del ".\src\main\java\com\github\drinkjava2\jbeanbox\FactoryUtils.java"
 
 
 set aop=.\src\main\java\com\github\drinkjava2\jbeanbox\AopUtils.java
@@ -18,3 +20,12 @@ set aop=.\src\main\java\com\github\drinkjava2\jbeanbox\AopUtils.java
 @echo		return null;>>%aop%
 @echo	}>>%aop%
 @echo }>>%aop%
+
+set fac=.\src\main\java\com\github\drinkjava2\jbeanbox\FactoryUtils.java
+ 
+@echo package com.github.drinkjava2.jbeanbox; >%fac%
+@echo public class FactoryUtils { >>%fac%
+@echo	public static BeanFactory createBeanFactory(Class^<^?^> beanClass, java.lang.reflect.Constructor^<^?^> constructor, java.lang.reflect.Field[] fields, java.lang.reflect.Method[] methods) { >>%fac%
+@echo		return null;>>%fac%
+@echo	}>>%fac%
+@echo }>>%fac%